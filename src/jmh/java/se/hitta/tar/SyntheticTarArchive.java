@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates tar archives for benchmarks, with a given number of entries, length of entry names and distribution of
+ * entry sizes. The same parameters (and seed) always generate the same archive.
+ */
+public final class SyntheticTarArchive
+{
+    /**
+     * Distributions of entry sizes
+     */
+    public enum Sizes
+    {
+        /**
+         * 1-8KB, like map tiles or thumbnails
+         */
+        SMALL,
+        /**
+         * Mostly 1-8KB, with one in twenty entries of 64KB-1MB
+         */
+        MIXED,
+        /**
+         * 256KB-4MB, like images or rasters
+         */
+        LARGE;
+
+        int next(Random random)
+        {
+            switch(this)
+            {
+                case SMALL:
+                    return 1024 + random.nextInt(7 * 1024);
+                case MIXED:
+                    return random.nextInt(20) == 0 ? (64 << 10) + random.nextInt(960 << 10) : 1024 + random.nextInt(7 * 1024);
+                default:
+                    return (256 << 10) + random.nextInt((4 << 20) - (256 << 10));
+            }
+        }
+    }
+
+    private SyntheticTarArchive()
+    {
+    }
+
+    /**
+     * @param index the index of an entry
+     * @param nameLength the length of the names (at least 16, at most {@link TarHeader#NAMELEN})
+     * @return the name of the entry, names are spread over directories of 1000 entries each
+     */
+    public static String name(int index, int nameLength)
+    {
+        StringBuilder name = new StringBuilder(nameLength);
+        name.append(String.format("d%05d/", index / 1000));
+
+        String file = String.format("%08d.bin", index);
+
+        while(name.length() + file.length() < nameLength)
+        {
+            name.append('f');
+        }
+
+        return name.append(file).toString();
+    }
+
+    /**
+     * @param entries the number of entries
+     * @param nameLength the length of the names (at least 16, at most {@link TarHeader#NAMELEN})
+     * @param sizes the distribution of entry sizes
+     * @param seed the seed for entry sizes and content
+     * @return a newly generated temporary tar archive (deleted on exit)
+     * @throws IOException if the archive cannot be written
+     */
+    public static File generate(int entries, int nameLength, Sizes sizes, long seed) throws IOException
+    {
+        File tarFile = File.createTempFile("synthetic-" + entries + "-" + nameLength + "-" + sizes, ".tar");
+        tarFile.deleteOnExit();
+
+        Random random = new Random(seed);
+        byte[] content = new byte[4 << 20];
+        random.nextBytes(content);
+
+        TarArchiveWriter writer = new TarArchiveWriter(tarFile);
+
+        try
+        {
+            for(int i = 0; i < entries; i++)
+            {
+                int size = sizes.next(random);
+                int offset = random.nextInt(content.length - size + 1);
+
+                writer.add(name(i, nameLength), ByteBuffer.wrap(content, offset, size));
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        return tarFile;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks reading entries with different read buffer sizes. The archive is small enough to stay in the page cache,
+ * so this measures the cost of the library rather than of the disk. Every operation reads one whole entry and returns
+ * its size, run with <code>-prof gc</code> to see allocation rates.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TarEntryReadBenchmark
+{
+    private static final int ENTRIES = 200;
+
+    @Param({ "SMALL", "MIXED", "LARGE" })
+    public SyntheticTarArchive.Sizes sizes;
+
+    @Param({ "512", "8192", "65536" })
+    public int bufferSize;
+
+    private File tarFile;
+    private TarArchive archive;
+    private TarHeader[] headers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.tarFile = SyntheticTarArchive.generate(ENTRIES, 32, this.sizes, 42);
+        this.archive = new TarArchive(this.tarFile);
+        this.headers = new TarHeader[ENTRIES];
+
+        for(int i = 0; i < ENTRIES; i++)
+        {
+            this.headers[i] = this.archive.getIndex().getHeader(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        this.archive.close();
+        this.tarFile.delete();
+    }
+
+    /**
+     * The position of a benchmark thread in the entries, and its read buffer
+     */
+    @State(Scope.Thread)
+    public static class Reader
+    {
+        private int next = 0;
+        private byte[] array;
+        private ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp(TarEntryReadBenchmark benchmark)
+        {
+            this.array = new byte[benchmark.bufferSize];
+            this.buffer = ByteBuffer.allocateDirect(benchmark.bufferSize);
+        }
+
+        TarHeader next(TarHeader[] headers)
+        {
+            TarHeader header = headers[this.next];
+            this.next = (this.next + 1) % headers.length;
+
+            return header;
+        }
+    }
+
+    @Benchmark
+    public long inputStream(Reader reader) throws IOException
+    {
+        return drain(new TarEntryInputStream(reader.next(this.headers), this.tarFile), reader.array);
+    }
+
+    @Benchmark
+    public long sharedInputStream(Reader reader) throws IOException
+    {
+        return drain(this.archive.newInputStream(reader.next(this.headers)), reader.array);
+    }
+
+    @Benchmark
+    public long sharedChannel(Reader reader) throws IOException
+    {
+        TarEntryChannel channel = this.archive.newChannel(reader.next(this.headers));
+        long total = 0;
+
+        try
+        {
+            for(int count; (count = channel.read(reader.buffer)) >= 0; reader.buffer.clear())
+            {
+                total += count;
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        return total;
+    }
+
+    private static long drain(InputStream stream, byte[] buffer) throws IOException
+    {
+        long total = 0;
+
+        try
+        {
+            for(int count; (count = stream.read(buffer)) >= 0;)
+            {
+                total += count;
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+/**
+ * Benchmarks building, looking up in, and loading a {@link TarIndex}. Run with <code>-prof gc</code> to see
+ * allocation rates.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TarIndexBenchmark
+{
+    @Param({ "10000", "100000" })
+    public int entries;
+
+    @Param({ "24", "96" })
+    public int nameLength;
+
+    private File tarFile;
+    private File indexFile;
+    private TarIndex index;
+    private TarIndex hashIndex;
+    private String[] hits;
+    private String[] misses;
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.tarFile = SyntheticTarArchive.generate(this.entries, this.nameLength, SyntheticTarArchive.Sizes.SMALL, 42);
+        this.index = new TarIndex(this.tarFile);
+        this.hashIndex = new TarIndex(this.tarFile, TarIndex.Option.HASH_LOOKUP);
+
+        //look names up in an order unrelated to the index order, but the same in every run
+        int stride = 7919;
+        this.hits = new String[this.entries];
+        this.misses = new String[this.entries];
+
+        for(int i = 0; i < this.entries; i++)
+        {
+            int entry = (int)((long)i * stride % this.entries);
+            this.hits[i] = SyntheticTarArchive.name(entry, this.nameLength);
+            this.misses[i] = this.hits[i].substring(0, this.hits[i].length() - 1) + "x";
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.index.serialize(out);
+        this.serialized = out.toByteArray();
+
+        this.indexFile = File.createTempFile("synthetic", ".idx");
+        this.index.store(this.indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.tarFile.delete();
+        this.indexFile.delete();
+    }
+
+    /**
+     * The position of a benchmark thread in the names to look up
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next = 0;
+
+        int next(int size)
+        {
+            int index = this.next;
+            this.next = index + 1 == size ? 0 : index + 1;
+
+            return index;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TarIndex build() throws IOException
+    {
+        return new TarIndex(this.tarFile);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TarIndex buildParallel() throws IOException
+    {
+        return new ParallelTarIndexer(ForkJoinPool.commonPool(), 16 << 20).index(this.tarFile);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Optional<TarHeader> getHit(Cursor cursor)
+    {
+        return this.index.get(this.hits[cursor.next(this.entries)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Optional<TarHeader> getMiss(Cursor cursor)
+    {
+        return this.index.get(this.misses[cursor.next(this.entries)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Optional<TarHeader> getHitHashed(Cursor cursor)
+    {
+        return this.hashIndex.get(this.hits[cursor.next(this.entries)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int indexOfHit(Cursor cursor)
+    {
+        return this.index.indexOf(this.hits[cursor.next(this.entries)]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int serialize() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.serialized.length);
+        this.index.serialize(out);
+
+        return out.size();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TarIndex deserialize() throws IOException
+    {
+        return TarIndex.deserialize(new ByteArrayInputStream(this.serialized));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TarIndex map() throws IOException
+    {
+        return TarIndex.map(this.indexFile);
+    }
+}
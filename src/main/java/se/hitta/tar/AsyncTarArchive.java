@@ -0,0 +1,365 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Optional;
+
+/**
+ * An indexed tar archive read asynchronously through an {@link AsynchronousFileChannel}, for callers that must not
+ * block, like event loops. Every read returns a {@link CompletableFuture} right away, and the future is completed
+ * on a thread of the channel's executor.<br>
+ * At most a configured number of reads are in flight on the channel at any time. Further reads are queued (without
+ * blocking the caller) and started as reads in flight complete, so any number of reads can be requested while the
+ * load on the disk, and on the executor, stays bounded.<br>
+ * Like {@link TarArchive}, the archive keeps a single channel open, and the channel is only closed when the archive
+ * has been closed and all reads in flight have completed. Unlike {@link TarArchive}, interrupting a thread never
+ * closes the channel.<br><br>
+ * <b>Note! on most platforms (including Linux) the JDK implements asynchronous file reads as blocking reads on the
+ * executor of the channel, so the executor should have about as many threads as reads are allowed in flight.</b>
+ */
+public class AsyncTarArchive implements Closeable
+{
+    private static final Set<OpenOption> READ_OPTIONS = Collections.<OpenOption>singleton(StandardOpenOption.READ);
+
+    private final TarIndex index;
+    private final AsynchronousFileChannel channel;
+    private final int maxConcurrentReads;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final Queue<Read> pending = new ConcurrentLinkedQueue<Read>();
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Creates an archive reading on the default executor of {@link AsynchronousFileChannel}s
+     * @param index an index of the tar archive to open
+     * @param maxConcurrentReads the largest number of reads in flight at any time
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public AsyncTarArchive(TarIndex index, int maxConcurrentReads) throws IOException
+    {
+        this(index, maxConcurrentReads, null);
+    }
+
+    /**
+     * @param index an index of the tar archive to open
+     * @param maxConcurrentReads the largest number of reads in flight at any time
+     * @param executor the executor to do reads and complete futures on, or null for the default executor
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public AsyncTarArchive(TarIndex index, int maxConcurrentReads, ExecutorService executor) throws IOException
+    {
+        if(maxConcurrentReads <= 0) throw new IllegalArgumentException("max concurrent reads must be positive: " + maxConcurrentReads);
+
+        this.index = index;
+        this.maxConcurrentReads = maxConcurrentReads;
+        this.channel = AsynchronousFileChannel.open(index.getTarFile().toPath(), READ_OPTIONS, executor);
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return a future completed with a buffer holding the content of the file, positioned at 0 and limited to the
+     *         size of the file, if the file was found (absent if not)
+     */
+    public CompletableFuture<Optional<ByteBuffer>> get(String key)
+    {
+        Optional<TarHeader> header = this.index.get(key);
+
+        if(!header.isPresent())
+        {
+            return CompletableFuture.completedFuture(Optional.<ByteBuffer>absent());
+        }
+
+        final CompletableFuture<Optional<ByteBuffer>> result = new CompletableFuture<Optional<ByteBuffer>>();
+        final CompletableFuture<ByteBuffer> read = read(header.get());
+
+        read.whenComplete(new BiConsumer<ByteBuffer, Throwable>()
+        {
+            @Override
+            public void accept(ByteBuffer buffer, Throwable failure)
+            {
+                if(failure != null)
+                {
+                    result.completeExceptionally(failure);
+                }
+                else
+                {
+                    result.complete(Optional.of(buffer));
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to read
+     * @return a future completed with a newly allocated buffer holding the content of the file, positioned at 0 and
+     *         limited to the size of the file
+     * @throws IllegalArgumentException if the file is too large to fit in a {@link ByteBuffer}
+     */
+    public CompletableFuture<ByteBuffer> read(TarHeader tarHeader)
+    {
+        if(tarHeader.getSize() > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("file too large to read: " + tarHeader.getName() + " (" + tarHeader.getSize() + " bytes)");
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int)tarHeader.getSize());
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+
+        read(tarHeader, 0, buffer).whenComplete(new BiConsumer<Integer, Throwable>()
+        {
+            @Override
+            public void accept(Integer count, Throwable failure)
+            {
+                if(failure != null)
+                {
+                    result.completeExceptionally(failure);
+                }
+                else
+                {
+                    buffer.flip();
+                    result.complete(buffer);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Reads a range of the content of a file into a buffer supplied by the caller. The buffer is filled up to its
+     * limit, or until the end of the file, and must not be touched until the future is completed.
+     * @param tarHeader the {@link TarHeader} for the file to read
+     * @param position the position within the file of the first byte to read
+     * @param dst the buffer to read into, from its position (which is advanced by the number of bytes read)
+     * @return a future completed with the number of bytes read, or -1 if the position is at or past the end of the file
+     * @throws IllegalArgumentException if position is negative
+     */
+    public CompletableFuture<Integer> read(TarHeader tarHeader, long position, ByteBuffer dst)
+    {
+        if(position < 0) throw new IllegalArgumentException("negative position: " + position);
+
+        CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+        if(position >= tarHeader.getSize() || !dst.hasRemaining())
+        {
+            result.complete(position >= tarHeader.getSize() ? -1 : 0);
+            return result;
+        }
+
+        if(!retain())
+        {
+            result.completeExceptionally(new IOException("archive closed: " + this.index.getTarFile()));
+            return result;
+        }
+
+        long count = Math.min(dst.remaining(), tarHeader.getSize() - position);
+        ByteBuffer target = dst;
+
+        if(count < dst.remaining())
+        {
+            //don't read past the end of the file
+            target = dst.duplicate();
+            target.limit(target.position() + (int)count);
+        }
+
+        this.pending.add(new Read(tarHeader.getTarFileOffset() + position, target, dst, result));
+        drain();
+
+        return result;
+    }
+
+    /**
+     * @return the index of this archive
+     */
+    public TarIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * @return the number of reads started and not yet completed
+     */
+    public int getReadsInFlight()
+    {
+        return this.inFlight.get();
+    }
+
+    /**
+     * @return the number of reads waiting to be started
+     */
+    public int getPendingReads()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * @return true if the archive has been closed
+     */
+    public boolean isClosed()
+    {
+        return this.closed.get();
+    }
+
+    /**
+     * Closes the archive. Reads already requested are completed, and the channel is closed when they are. Reads
+     * requested after this fail.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(this.closed.compareAndSet(false, true))
+        {
+            release();
+        }
+    }
+
+    /**
+     * Starts pending reads while there are less than the max number of reads in flight. This is called whenever a
+     * read is added, and whenever a read completes, so a read is never left pending while there is room for it.
+     */
+    private void drain()
+    {
+        while(!this.pending.isEmpty())
+        {
+            int count = this.inFlight.get();
+
+            if(count >= this.maxConcurrentReads) return;
+            if(!this.inFlight.compareAndSet(count, count + 1)) continue;
+
+            Read read = this.pending.poll();
+
+            if(read == null)
+            {
+                this.inFlight.decrementAndGet();
+                continue;
+            }
+
+            read.next();
+        }
+    }
+
+    private boolean retain()
+    {
+        for(;;)
+        {
+            int count = this.references.get();
+
+            if(count == 0) return false;
+            if(this.references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    private void release()
+    {
+        if(this.references.decrementAndGet() == 0)
+        {
+            try
+            {
+                this.channel.close();
+            } catch (IOException e)
+            {
+                //nothing to do about it, no one is reading
+            }
+        }
+    }
+
+    /**
+     * A read that continues until the target is full, completing the future when it is
+     */
+    private final class Read implements CompletionHandler<Integer, Void>
+    {
+        private final long offset;
+        private final ByteBuffer target;
+        private final ByteBuffer dst;
+        private final CompletableFuture<Integer> result;
+        private final int start;
+
+        Read(long offset, ByteBuffer target, ByteBuffer dst, CompletableFuture<Integer> result)
+        {
+            this.offset = offset;
+            this.target = target;
+            this.dst = dst;
+            this.result = result;
+            this.start = target.position();
+        }
+
+        void next()
+        {
+            try
+            {
+                AsyncTarArchive.this.channel.read(this.target, this.offset + this.target.position() - this.start, null, this);
+            } catch (RuntimeException e)
+            {
+                failed(e, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment)
+        {
+            if(count < 0)
+            {
+                failed(new EOFException("archive ended before " + (this.offset + this.target.limit() - this.start) + ": " + AsyncTarArchive.this.index.getTarFile()), null);
+            }
+            else if(this.target.hasRemaining())
+            {
+                next();
+            }
+            else
+            {
+                int read = this.target.position() - this.start;
+                this.dst.position(this.start + read);
+                done();
+                this.result.complete(read);
+            }
+        }
+
+        @Override
+        public void failed(Throwable failure, Void attachment)
+        {
+            done();
+            this.result.completeExceptionally(failure);
+        }
+
+        private void done()
+        {
+            AsyncTarArchive.this.inFlight.decrementAndGet();
+            release();
+            drain();
+        }
+    }
+}
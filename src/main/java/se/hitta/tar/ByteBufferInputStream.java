@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the remaining bytes of a {@link ByteBuffer}.<br>
+ * The stream operates on its own view of the buffer, so the position of the provided buffer is never changed.
+ */
+class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+    private boolean closed = false;
+
+    /**
+     * @param buffer the buffer to read, from its position up to its limit
+     */
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        if(this.closed) throw new IOException("stream closed");
+
+        return this.buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.closed = true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if(this.closed) throw new IOException("stream closed");
+
+        return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if(this.closed) throw new IOException("stream closed");
+        if(len == 0) return 0;
+        if(!this.buffer.hasRemaining()) return -1;
+
+        int count = Math.min(len, this.buffer.remaining());
+        this.buffer.get(b, off, count);
+
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        if(this.closed) throw new IOException("stream closed");
+        if(n <= 0) return 0;
+
+        int count = (int)Math.min(n, this.buffer.remaining());
+        this.buffer.position(this.buffer.position() + count);
+
+        return count;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+/**
+ * A count-min sketch of 4 bit counters, estimating how often keys have been seen recently. This is the frequency
+ * filter of TinyLFU: when the number of recorded keys reaches ten times the number of counters, all counters are
+ * halved, so old popularity fades away.<br>
+ * The sketch isn't thread safe.
+ */
+final class FrequencySketch
+{
+    private static final int[] SEEDS = { 0x97cb3127, 0xb3a5c75b, 0x8f8e5ab1, 0xe5b4a5b7 };
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param counters the minimum number of counters (rounded up to a power of two, at least 64)
+     */
+    FrequencySketch(int counters)
+    {
+        int size = Integer.highestOneBit(Math.max(64, Math.min(counters, 1 << 30)) - 1) << 1;
+
+        this.table = new long[size / 16];
+        this.mask = size - 1;
+        this.sampleSize = size * 10;
+    }
+
+    /**
+     * @param hash the hash code of a key
+     * @return the estimated number of times the key has been recorded, at most 15
+     */
+    int frequency(int hash)
+    {
+        int frequency = MAX_COUNT;
+
+        for(int seed : SEEDS)
+        {
+            frequency = Math.min(frequency, get(index(hash, seed)));
+        }
+
+        return frequency;
+    }
+
+    /**
+     * @param hash the hash code of a key to record
+     */
+    void increment(int hash)
+    {
+        boolean incremented = false;
+
+        for(int seed : SEEDS)
+        {
+            int index = index(hash, seed);
+
+            if(get(index) < MAX_COUNT)
+            {
+                this.table[index >>> 4] += 1L << ((index & 15) << 2);
+                incremented = true;
+            }
+        }
+
+        if(incremented && ++this.additions >= this.sampleSize)
+        {
+            reset();
+        }
+    }
+
+    private int get(int index)
+    {
+        return (int)(this.table[index >>> 4] >>> ((index & 15) << 2)) & 0xf;
+    }
+
+    private int index(int hash, int seed)
+    {
+        int h = (hash + seed) * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+
+        return (h ^ h >>> 13) & this.mask;
+    }
+
+    private void reset()
+    {
+        for(int i = 0; i < this.table.length; i++)
+        {
+            this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+        }
+
+        this.additions /= 2;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+
+/**
+ * An index of a gzip compressed tar archive (<code>.tar.gz</code>), that allows reading a file in the archive without
+ * decompressing everything before it.<br>
+ * The archive is decompressed once to build the index. While doing so, checkpoints are recorded: pairs of offsets in
+ * the compressed and the uncompressed archive where decompression can start over. Reading a file then starts
+ * decompressing at the last checkpoint before the file, and skips (decompresses) only the bytes from the checkpoint
+ * to the file.<br>
+ * Checkpoints are taken at the start of gzip members, at most one per {@link #DEFAULT_CHECKPOINT_SPACING} (or
+ * configured number of) uncompressed bytes. A gzip file made of many members, like the BGZF files written by
+ * <code>bgzip</code> or files written in pieces and concatenated, thus gets evenly spaced checkpoints. A gzip file
+ * of a single member only has a checkpoint at its start, so reading a file in it decompresses everything before the
+ * file (but never writes it anywhere).<br>
+ * Offsets of the {@link TarHeader}s in the index are offsets in the uncompressed archive.<br><br>
+ * <b>Note! checkpoints within a gzip member would need a decompressor that can be started at an arbitrary bit
+ * offset (zlib's inflatePrime), which {@link Inflater} doesn't provide. For the same reason, {@link TarIndex#refresh()}
+ * doesn't apply to the index of a compressed archive, build a new {@link GzipTarIndex} instead.</b>
+ */
+public class GzipTarIndex
+{
+    private static final String READ_MODE = "r";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAGIC = 'T' | 'G' << 8 | 'Z' << 16 | 'C' << 24;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    /**
+     * The default least number of uncompressed bytes between two checkpoints (4MB)
+     */
+    public static final long DEFAULT_CHECKPOINT_SPACING = 4L << 20;
+
+    /**
+     * The suffix of the checkpoint file stored next to the index file, see {@link #store(File)}
+     */
+    public static final String CHECKPOINT_SUFFIX = ".gzc";
+
+    private final TarIndex index;
+    private final long[] compressedOffsets;
+    private final long[] uncompressedOffsets;
+
+    /**
+     * @param gzFile the gzip compressed tar archive to index
+     * @param options options for how the index is built
+     * @throws IOException if the file cannot be read, or isn't a gzip file
+     */
+    public GzipTarIndex(File gzFile, TarIndex.Option... options) throws IOException
+    {
+        this(gzFile, DEFAULT_CHECKPOINT_SPACING, options);
+    }
+
+    /**
+     * @param gzFile the gzip compressed tar archive to index
+     * @param checkpointSpacing the least number of uncompressed bytes between two checkpoints
+     * @param options options for how the index is built
+     * @throws IOException if the file cannot be read, or isn't a gzip file
+     */
+    public GzipTarIndex(File gzFile, long checkpointSpacing, TarIndex.Option... options) throws IOException
+    {
+        if(checkpointSpacing <= 0) throw new IllegalArgumentException("checkpoint spacing must be positive: " + checkpointSpacing);
+
+        RandomAccessFile file = new RandomAccessFile(gzFile, READ_MODE);
+
+        try
+        {
+            Scan scan = new Scan(file.getChannel(), checkpointSpacing, TarIndex.toSet(options).contains(TarIndex.Option.CHECKSUMS));
+            scan.run();
+
+            this.compressedOffsets = Arrays.copyOf(scan.compressedOffsets, scan.checkpoints);
+            this.uncompressedOffsets = Arrays.copyOf(scan.uncompressedOffsets, scan.checkpoints);
+            this.index = new TarIndex(gzFile, TarIndex.lastModified(gzFile), scan.scanner.build(TarIndex.toSet(options)), scan.scanner.getEndOffset(), gzFile.length(), true);
+        } catch (DataFormatException e)
+        {
+            throw new IOException("corrupt gzip file: " + gzFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    private GzipTarIndex(TarIndex index, long[] compressedOffsets, long[] uncompressedOffsets)
+    {
+        this.index = index;
+        this.compressedOffsets = compressedOffsets;
+        this.uncompressedOffsets = uncompressedOffsets;
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     */
+    public Optional<TarHeader> get(String key)
+    {
+        return this.index.get(key);
+    }
+
+    /**
+     * Opens the compressed archive, and starts decompressing it at the last checkpoint before the file
+     * @param tarHeader the {@link TarHeader} for the file to create the input stream for
+     * @return an input stream of the decompressed content of the file
+     * @throws IOException if the archive cannot be opened or decompressed
+     */
+    public InputStream newInputStream(TarHeader tarHeader) throws IOException
+    {
+        int checkpoint = Arrays.binarySearch(this.uncompressedOffsets, tarHeader.getTarFileOffset());
+
+        if(checkpoint < 0)
+        {
+            checkpoint = -checkpoint - 2;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(this.index.getTarFile(), READ_MODE);
+
+        try
+        {
+            FileChannel channel = file.getChannel();
+            channel.position(this.compressedOffsets[checkpoint]);
+
+            InputStream in = new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            IOUtils.skipFully(in, tarHeader.getTarFileOffset() - this.uncompressedOffsets[checkpoint]);
+
+            return ByteStreams.limit(in, tarHeader.getSize());
+        } catch (IOException e)
+        {
+            IOUtils.closeQuietly(file);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the index of the uncompressed archive, which can't be used to read from the compressed archive by itself
+     *         (see {@link TarIndex#isCompressed()})
+     */
+    public TarIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * @return the number of checkpoints, at least one
+     */
+    public int getCheckpointCount()
+    {
+        return this.compressedOffsets.length;
+    }
+
+    /**
+     * Stores the index in a binary index file (see {@link TarIndex#store(File)}), and the checkpoints next to it, in
+     * a file named as the index file with the {@link #CHECKPOINT_SUFFIX}
+     * @param indexFile target file for the index
+     * @throws IOException if the operation for any reasons fail
+     */
+    public void store(File indexFile) throws IOException
+    {
+        this.index.store(indexFile);
+
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + this.compressedOffsets.length * 16 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putInt(this.compressedOffsets.length);
+        data.putInt(0);
+
+        for(int i = 0; i < this.compressedOffsets.length; i++)
+        {
+            data.putLong(this.compressedOffsets[i]);
+            data.putLong(this.uncompressedOffsets[i]);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.position());
+        data.putInt((int)checksum.getValue());
+
+        File file = new File(indexFile.getPath() + CHECKPOINT_SUFFIX);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try
+        {
+            out.write(data.array());
+            out.getFD().sync();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+
+        if(!temp.renameTo(file))
+        {
+            file.delete();
+
+            if(!temp.renameTo(file))
+            {
+                temp.delete();
+                throw new IOException("failed to rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Memory maps an index file written by {@link #store(File)} (see {@link TarIndex#map(File)}) and reads the
+     * checkpoints stored next to it
+     * @param indexFile the index file to map
+     * @return the mapped {@link GzipTarIndex}
+     * @throws IOException if the files cannot be read, or aren't valid index and checkpoint files
+     */
+    public static GzipTarIndex map(File indexFile) throws IOException
+    {
+        long start = TarMetrics.start();
+        TarIndex index = TarIndexFile.map(indexFile, false);
+
+        if(!index.isCompressed()) throw new IOException("not the index of a compressed archive: " + indexFile);
+
+        File file = new File(indexFile.getPath() + CHECKPOINT_SUFFIX);
+        ByteBuffer data = ByteBuffer.wrap(FileUtils.readFileToByteArray(file)).order(ByteOrder.LITTLE_ENDIAN);
+
+        if(data.capacity() < HEADER_SIZE + 4 || data.getInt(0) != MAGIC) throw new IOException("not a gzip checkpoint file: " + file);
+        if(data.getInt(4) != VERSION) throw new IOException("unsupported gzip checkpoint file version " + data.getInt(4) + ": " + file);
+
+        int count = data.getInt(8);
+
+        if(count <= 0 || data.capacity() != HEADER_SIZE + count * 16L + 4) throw new IOException("corrupt gzip checkpoint file: " + file);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.capacity() - 4);
+
+        if((int)checksum.getValue() != data.getInt(data.capacity() - 4)) throw new IOException("corrupt gzip checkpoint file: " + file);
+
+        long[] compressedOffsets = new long[count];
+        long[] uncompressedOffsets = new long[count];
+        data.position(HEADER_SIZE);
+
+        for(int i = 0; i < count; i++)
+        {
+            compressedOffsets[i] = data.getLong();
+            uncompressedOffsets[i] = data.getLong();
+        }
+
+        TarMetrics.indexLoaded(start, index);
+
+        return new GzipTarIndex(index, compressedOffsets, uncompressedOffsets);
+    }
+
+    /**
+     * Decompresses a gzip file member by member, scanning the tar archive in it and recording checkpoints at the
+     * start of members
+     */
+    private static final class Scan
+    {
+        private final FileChannel channel;
+        private final long checkpointSpacing;
+        private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final TarStreamScanner scanner;
+        private long inputOffset = 0;
+        private long[] compressedOffsets = new long[16];
+        private long[] uncompressedOffsets = new long[16];
+        private int checkpoints = 0;
+
+        Scan(FileChannel channel, long checkpointSpacing, boolean checksums)
+        {
+            this.channel = channel;
+            this.checkpointSpacing = checkpointSpacing;
+            this.scanner = new TarStreamScanner(checksums);
+            this.input.limit(0);
+        }
+
+        void run() throws IOException, DataFormatException
+        {
+            try
+            {
+                do
+                {
+                    member();
+                }
+                while(!this.scanner.isEndOfArchive() && hasMember());
+            }
+            finally
+            {
+                this.inflater.end();
+            }
+        }
+
+        private void member() throws IOException, DataFormatException
+        {
+            long start = position();
+            long uncompressed = this.scanner.getPosition();
+
+            if(this.checkpoints == 0 || uncompressed - this.uncompressedOffsets[this.checkpoints - 1] >= this.checkpointSpacing)
+            {
+                checkpoint(start, uncompressed);
+            }
+
+            if(readShort() != GZIP_MAGIC || readByte() != 8) throw new IOException("not a gzip member at offset " + start);
+
+            int flags = readByte();
+            skip(6); //modification time, extra flags and operating system
+
+            if((flags & FEXTRA) != 0) skip(readShort());
+            if((flags & FNAME) != 0) while(readByte() != 0);
+            if((flags & FCOMMENT) != 0) while(readByte() != 0);
+            if((flags & FHCRC) != 0) skip(2);
+
+            this.inflater.reset();
+            this.crc.reset();
+
+            while(!this.inflater.finished())
+            {
+                if(!this.input.hasRemaining() && !fill()) throw new EOFException("gzip member at offset " + start + " is truncated");
+
+                this.inflater.setInput(this.input.array(), this.input.position(), this.input.remaining());
+
+                int count = this.inflater.inflate(this.output);
+                this.input.position(this.input.limit() - this.inflater.getRemaining());
+
+                if(this.inflater.needsDictionary()) throw new DataFormatException("gzip member at offset " + start + " needs a dictionary");
+
+                this.crc.update(this.output, 0, count);
+                this.scanner.scan(ByteBuffer.wrap(this.output, 0, count));
+            }
+
+            long crc = readInt() & 0xffffffffL;
+            long size = readInt() & 0xffffffffL;
+
+            if(crc != this.crc.getValue() || size != (this.inflater.getBytesWritten() & 0xffffffffL))
+            {
+                throw new IOException("corrupt gzip member at offset " + start);
+            }
+        }
+
+        /**
+         * @return true if another member follows (anything else after a member, like padding, is ignored)
+         */
+        private boolean hasMember() throws IOException
+        {
+            if(this.input.remaining() < 2)
+            {
+                fill();
+            }
+
+            return this.input.remaining() >= 2 && (this.input.get(this.input.position()) & 0xff | (this.input.get(this.input.position() + 1) & 0xff) << 8) == GZIP_MAGIC;
+        }
+
+        private void checkpoint(long compressed, long uncompressed)
+        {
+            if(this.checkpoints == this.compressedOffsets.length)
+            {
+                this.compressedOffsets = Arrays.copyOf(this.compressedOffsets, this.checkpoints * 2);
+                this.uncompressedOffsets = Arrays.copyOf(this.uncompressedOffsets, this.checkpoints * 2);
+            }
+
+            this.compressedOffsets[this.checkpoints] = compressed;
+            this.uncompressedOffsets[this.checkpoints] = uncompressed;
+            this.checkpoints++;
+        }
+
+        /**
+         * @return the offset in the file of the next byte to decompress
+         */
+        private long position()
+        {
+            return this.inputOffset + this.input.position();
+        }
+
+        /**
+         * Reads more of the file, keeping the bytes not yet consumed
+         * @return false if the end of the file has been reached
+         */
+        private boolean fill() throws IOException
+        {
+            this.inputOffset = position();
+            this.input.compact();
+
+            int count = this.channel.read(this.input, this.inputOffset + this.input.position());
+            this.input.flip();
+
+            return count > 0;
+        }
+
+        private int readByte() throws IOException
+        {
+            if(!this.input.hasRemaining() && !fill()) throw new EOFException("gzip file ended at offset " + position());
+
+            return this.input.get() & 0xff;
+        }
+
+        private int readShort() throws IOException
+        {
+            return readByte() | readByte() << 8;
+        }
+
+        private int readInt() throws IOException
+        {
+            return readShort() | readShort() << 16;
+        }
+
+        private void skip(int count) throws IOException
+        {
+            for(int i = 0; i < count; i++)
+            {
+                readByte();
+            }
+        }
+    }
+}
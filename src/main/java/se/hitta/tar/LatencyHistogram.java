@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values (e.g. durations in nanoseconds), with log-linear buckets like
+ * HdrHistogram: values are counted exactly up to {@link #SUB_BUCKETS}, and with a relative precision of
+ * 1/{@link #SUB_BUCKETS} (about 3%) above that. Recording a value is an increment of a counter, and the histogram has a
+ * fixed size (about 15KB) regardless of the range of values.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets per power of two
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    public void record(long value)
+    {
+        value = Math.max(value, 0);
+
+        this.counts.incrementAndGet(bucket(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        for(long max = this.max.get(); value > max && !this.max.compareAndSet(max, value); max = this.max.get());
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the largest recorded value, or 0 if none
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if none
+     */
+    public double getMean()
+    {
+        long count = this.count.sum();
+
+        return count == 0 ? 0 : (double)this.sum.sum() / count;
+    }
+
+    /**
+     * @param percentile a percentile, from 0 to 100
+     * @return the smallest value (within the precision of the histogram) that the provided percentile of the recorded
+     *         values are less than or equal to, or 0 if none
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            total += this.counts.get(i);
+        }
+
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += this.counts.get(i);
+
+            if(seen >= target) return Math.min(highest(i), this.max.get());
+        }
+
+        return 0;
+    }
+
+    static int bucket(long value)
+    {
+        if(value < SUB_BUCKETS) return (int)value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long highest(int bucket)
+    {
+        if(bucket < SUB_BUCKETS) return bucket;
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long)(SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+}
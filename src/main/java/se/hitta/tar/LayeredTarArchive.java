@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Optional;
+
+/**
+ * A stack of tar archives (layers) read as a single archive, see {@link LayeredTarIndex}. Every layer is opened as a
+ * {@link TarArchive}, and a file is read from the archive of the layer it is found in.<br>
+ * When delta layers pile up, {@link #compact(File, TarIndex.Option...)} merges the visible files of all layers into a
+ * new base archive. Compaction only reads from the layers, so it can run in the background while the archive is in
+ * use, after which a new {@link LayeredTarIndex} with the compacted base can replace this one.
+ */
+public class LayeredTarArchive implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LayeredTarIndex index;
+    private final TarArchive[] archives;
+
+    /**
+     * @param index an index of the layers to open
+     * @throws IOException if the archive of any layer cannot be opened for reading
+     */
+    public LayeredTarArchive(LayeredTarIndex index) throws IOException
+    {
+        List<TarIndex> layers = index.getLayers();
+
+        this.index = index;
+        this.archives = new TarArchive[layers.size()];
+
+        try
+        {
+            for(int layer = 0; layer < this.archives.length; layer++)
+            {
+                this.archives[layer] = new TarArchive(layers.get(layer));
+            }
+        } catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found in any layer, and not deleted by a layer above it, an input stream for the file will be present in the response, if not it will be absent
+     * @throws IOException if the archive has been closed
+     */
+    public Optional<InputStream> newInputStream(String key) throws IOException
+    {
+        int i = this.index.indexOf(key);
+
+        return i >= 0 ? Optional.of(this.archives[this.index.getLayer(i)].newInputStream(this.index.getHeader(i))) : Optional.<InputStream>absent();
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found in any layer, and not deleted by a layer above it, a channel for the file will be present in the response, if not it will be absent
+     * @throws IOException if the archive has been closed
+     */
+    public Optional<TarEntryChannel> newChannel(String key) throws IOException
+    {
+        int i = this.index.indexOf(key);
+
+        return i >= 0 ? Optional.of(this.archives[this.index.getLayer(i)].newChannel(this.index.getHeader(i))) : Optional.<TarEntryChannel>absent();
+    }
+
+    /**
+     * Writes the visible entries of all layers, in name order, to a new tar archive. Regular files, directories,
+     * links and FIFOs are written, and keep their modification times, permission bits and link targets. If compaction
+     * fails, the partially written archive is deleted.
+     * @param tarFile the file to write the compacted archive to (it is created, or truncated if it exists)
+     * @param options options for how the index of the compacted archive is built
+     * @return the index of the compacted archive
+     * @throws IOException if reading a layer or writing the compacted archive fails, or a visible entry is of a type
+     *             that can't be written (e.g. a device)
+     */
+    public TarIndex compact(File tarFile, TarIndex.Option... options) throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(tarFile, options);
+        boolean finished = false;
+
+        try
+        {
+            for(int i = 0; i < this.index.getSize(); i++)
+            {
+                TarHeader header = this.index.getHeader(i);
+                byte linkFlag = header.getLinkFlag();
+                TarArchive archive = this.archives[this.index.getLayer(i)];
+                byte[] block = archive.readHeaderBlock(header);
+                long modTime = TarHeader.build(block, 0, header.getTarFileOffset()).getModTime();
+                int mode = TarHeader.parseMode(block, 0) & 07777;
+
+                if(linkFlag == TarHeader.LF_DIR || linkFlag == TarHeader.LF_SYMLINK || linkFlag == TarHeader.LF_LINK || linkFlag == TarHeader.LF_FIFO)
+                {
+                    writer.add(header.getName(), linkFlag, new String(TarHeader.parseLinkName(block, 0), UTF8), modTime, mode);
+                    continue;
+                }
+
+                if(linkFlag != TarHeader.LF_NORMAL && linkFlag != TarHeader.LF_OLDNORM && linkFlag != TarHeader.LF_CONTIG)
+                {
+                    throw new IOException("can't compact entry of type " + (char)linkFlag + ": " + header.getName());
+                }
+
+                InputStream content = archive.newInputStream(header);
+
+                try
+                {
+                    writer.add(header.getName(), content, header.getSize(), modTime, mode);
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(content);
+                }
+            }
+
+            TarIndex compacted = writer.finish();
+            finished = true;
+
+            return compacted;
+        }
+        finally
+        {
+            if(!finished)
+            {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * @return the index of the layers
+     */
+    public LayeredTarIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * Closes the archives of all layers. Streams and channels in flight are not affected.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for(TarArchive archive : this.archives)
+        {
+            IOUtils.closeQuietly(archive);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+
+/**
+ * An index of a stack of tar archives (layers) seen as a single archive, e.g. a large base archive with small delta
+ * archives on top of it.<br>
+ * A file in a layer shadows files with the same name in the layers below it. A layer can also delete files from the
+ * layers below it using whiteouts, the way layered container images do: an entry named <code>.wh.&lt;name&gt;</code>
+ * deletes the file (or directory, with everything in it) <code>&lt;name&gt;</code> in the same directory, and an
+ * entry named <code>.wh..wh..opq</code> deletes everything in its directory. Whiteouts themselves aren't visible.<br>
+ * The layers are merged into a single table of the visible files once, when the index is created, so a lookup is a
+ * single lookup however many layers there are. The headers of the table hold offsets in the archives of their layers,
+ * see {@link #getLayer(int)}. Use a {@link LayeredTarArchive} to read the files, and to compact the layers into a
+ * new base archive when they pile up.
+ */
+public class LayeredTarIndex
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The prefix of the name of a whiteout entry
+     */
+    public static final String WHITEOUT_PREFIX = ".wh.";
+
+    /**
+     * The name of an opaque whiteout entry, deleting everything in its directory
+     */
+    public static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+
+    private final List<TarIndex> layers;
+    private final TarHeaderTable headers;
+    private final short[] layerOf;
+
+    /**
+     * @param layers the indexes of the layers, bottom (base) layer first
+     * @param options {@link TarIndex.Option#OFF_HEAP} and {@link TarIndex.Option#HASH_LOOKUP} are honored for the merged
+     *            table, which keeps modification times and checksums if all layers have them
+     */
+    public LayeredTarIndex(List<TarIndex> layers, TarIndex.Option... options)
+    {
+        if(layers.isEmpty()) throw new IllegalArgumentException("no layers");
+        if(layers.size() > Short.MAX_VALUE) throw new IllegalArgumentException("too many layers: " + layers.size());
+
+        this.layers = Collections.unmodifiableList(new ArrayList<TarIndex>(layers));
+
+        TarHeaderTable[] tables = new TarHeaderTable[layers.size()];
+        long total = 0;
+
+        for(int layer = 0; layer < tables.length; layer++)
+        {
+            tables[layer] = layers.get(layer).getHeaders();
+            total += tables[layer].size();
+        }
+
+        if(total > Integer.MAX_VALUE) throw new IllegalArgumentException("too many files to index: " + total);
+
+        BitSet[] removed = removed(tables);
+        long[] picks = new long[(int)total];
+        int count = 0;
+
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(tables.length);
+
+        for(int layer = 0; layer < tables.length; layer++)
+        {
+            if(tables[layer].size() > 0) cursors.add(new Cursor(tables[layer], layer));
+        }
+
+        while(!cursors.isEmpty())
+        {
+            //the topmost layer holding the next name wins, and within it the file appended last
+            Cursor top = cursors.poll();
+            int layer = top.layer;
+            int row = top.skipName();
+
+            while(!cursors.isEmpty() && cursors.peek().compareName(tables[layer], row) == 0)
+            {
+                Cursor shadowed = cursors.poll();
+                shadowed.skipName();
+
+                if(!shadowed.isDone()) cursors.add(shadowed);
+            }
+
+            if(!top.isDone()) cursors.add(top);
+
+            if(!removed[layer].get(row))
+            {
+                picks[count++] = (long)layer << 32 | row;
+            }
+        }
+
+        Set<TarIndex.Option> optionSet = TarIndex.toSet(options);
+        optionSet.remove(TarIndex.Option.MOD_TIMES);
+        optionSet.remove(TarIndex.Option.CHECKSUMS);
+        Set<TarIndex.Option> columns = EnumSet.of(TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS);
+
+        for(TarHeaderTable table : tables)
+        {
+            columns.retainAll(table.options());
+        }
+
+        optionSet.addAll(columns);
+
+        this.headers = TarHeaderTable.pick(tables, picks, count, optionSet);
+        this.layerOf = new short[count];
+
+        for(int i = 0; i < count; i++)
+        {
+            this.layerOf[i] = (short)(picks[i] >>> 32);
+        }
+    }
+
+    /**
+     * Finds the rows that are whiteouts, or that are deleted by whiteouts in layers above them
+     */
+    private static BitSet[] removed(TarHeaderTable[] tables)
+    {
+        byte[] prefix = WHITEOUT_PREFIX.getBytes(UTF8);
+        BitSet[] removed = new BitSet[tables.length];
+
+        for(int layer = 0; layer < tables.length; layer++)
+        {
+            removed[layer] = new BitSet(tables[layer].size());
+        }
+
+        for(int layer = 0; layer < tables.length; layer++)
+        {
+            TarHeaderTable table = tables[layer];
+
+            for(int row = 0; row < table.size(); row++)
+            {
+                if(!table.baseNameStartsWith(row, prefix)) continue;
+
+                removed[layer].set(row);
+
+                String name = table.getName(row);
+
+                if(name.endsWith("/")) name = name.substring(0, name.length() - 1);
+
+                int base = name.lastIndexOf('/') + 1;
+                String directory = name.substring(0, base);
+                String whiteout = name.substring(base);
+
+                for(int below = 0; below < layer; below++)
+                {
+                    if(whiteout.equals(OPAQUE_WHITEOUT))
+                    {
+                        removeRange(tables[below], removed[below], directory);
+                    }
+                    else
+                    {
+                        String target = directory + whiteout.substring(WHITEOUT_PREFIX.length());
+                        TarHeaderTable lower = tables[below];
+
+                        for(int i = lower.lowerBound(target); i < lower.size() && lower.compare(i, target) == 0; i++)
+                        {
+                            removed[below].set(i);
+                        }
+
+                        removeRange(tables[below], removed[below], target + "/");
+                    }
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    private static void removeRange(TarHeaderTable table, BitSet removed, String prefix)
+    {
+        int start = table.lowerBound(prefix);
+        int end = table.prefixEnd(prefix);
+
+        if(start < end) removed.set(start, end);
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     */
+    public Optional<TarHeader> get(CharSequence key)
+    {
+        int index = this.headers.find(key);
+
+        return index >= 0 ? Optional.of(this.headers.getHeader(index)) : Optional.<TarHeader>absent();
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return the index of the file in the merged index (see {@link #getHeader(int)} and {@link #getLayer(int)}), or a negative number if not found
+     */
+    public int indexOf(CharSequence key)
+    {
+        return this.headers.find(key);
+    }
+
+    /**
+     * @param index the index of a file in the merged index, see {@link #indexOf(CharSequence)}
+     * @return the {@link TarHeader} of the file, with its offset in the archive of its layer
+     */
+    public TarHeader getHeader(int index)
+    {
+        checkIndex(index);
+
+        return this.headers.getHeader(index);
+    }
+
+    /**
+     * @param index the index of a file in the merged index, see {@link #indexOf(CharSequence)}
+     * @return the layer holding the file, as an index into {@link #getLayers()}
+     */
+    public int getLayer(int index)
+    {
+        checkIndex(index);
+
+        return this.layerOf[index];
+    }
+
+    private void checkIndex(int index)
+    {
+        if(index < 0 || index >= this.headers.size()) throw new IndexOutOfBoundsException("index: " + index);
+    }
+
+    /**
+     * @return the indexes of the layers, bottom (base) layer first
+     */
+    public List<TarIndex> getLayers()
+    {
+        return this.layers;
+    }
+
+    /**
+     * @return the number of visible files
+     */
+    public long getSize()
+    {
+        return this.headers.size();
+    }
+
+    /**
+     * @return the approximate number of bytes used by the merged index (not counting the indexes of the layers)
+     */
+    public long getMemoryUsage()
+    {
+        return this.headers.length() + this.layerOf.length * 2L;
+    }
+
+    /**
+     * A position in the table of a layer, ordered by name, and by layer from the top for equal names
+     */
+    private static final class Cursor implements Comparable<Cursor>
+    {
+        private final TarHeaderTable table;
+        private final int layer;
+        private int row = 0;
+
+        private Cursor(TarHeaderTable table, int layer)
+        {
+            this.table = table;
+            this.layer = layer;
+        }
+
+        private boolean isDone()
+        {
+            return this.row == this.table.size();
+        }
+
+        private int compareName(TarHeaderTable other, int otherRow)
+        {
+            return this.table.compare(this.row, other, otherRow);
+        }
+
+        /**
+         * Moves past all rows with the current name
+         * @return the row with the current name that is last in the archive
+         */
+        private int skipName()
+        {
+            int newest = this.row;
+
+            for(this.row++; !isDone() && this.table.compare(this.row, this.table, newest) == 0; this.row++)
+            {
+                if(this.table.getTarFileOffset(this.row) > this.table.getTarFileOffset(newest)) newest = this.row;
+            }
+
+            return newest;
+        }
+
+        @Override
+        public int compareTo(Cursor other)
+        {
+            int cmp = this.table.compare(this.row, other.table, other.row);
+
+            return cmp != 0 ? cmp : other.layer - this.layer;
+        }
+    }
+}
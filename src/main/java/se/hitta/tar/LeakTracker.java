@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds resources that are garbage collected without being closed, using phantom references. A tracked resource
+ * that is closed untracks itself. A tracked resource that is collected is reported to a listener the next time a
+ * resource is tracked, which keeps the tracker free of threads of its own.
+ */
+final class LeakTracker
+{
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+    private static final Set<Leak> TRACKED = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+    private LeakTracker()
+    {
+    }
+
+    /**
+     * @param resource the resource to track (no reference to it is kept, apart from the phantom reference)
+     * @param description a description of the resource to report if it leaks
+     * @param listener the listener to report leaks to
+     * @return a handle to close when the resource is closed
+     */
+    static Leak track(Object resource, String description, TarMetricsListener listener)
+    {
+        for(Reference<?> reference; (reference = QUEUE.poll()) != null;)
+        {
+            Leak leak = (Leak)reference;
+
+            if(TRACKED.remove(leak))
+            {
+                listener.leaked(leak.description);
+            }
+        }
+
+        Leak leak = new Leak(resource, description);
+        TRACKED.add(leak);
+
+        return leak;
+    }
+
+    /**
+     * @return the number of tracked resources that are neither closed nor reported as leaked
+     */
+    static int size()
+    {
+        return TRACKED.size();
+    }
+
+    static final class Leak extends PhantomReference<Object>
+    {
+        private final String description;
+
+        private Leak(Object resource, String description)
+        {
+            super(resource, QUEUE);
+            this.description = description;
+        }
+
+        void close()
+        {
+            TRACKED.remove(this);
+            clear();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Optional;
+
+/**
+ * A tar archive that is memory mapped once, and then serves its entries as read-only {@link ByteBuffer} slices of
+ * the mapping. Reading an entry that is resident in the page cache involves neither system calls nor copying.<br>
+ * Archives larger than a single mapping can hold are mapped in chunks of {@link #CHUNK_SIZE} bytes. The (rare) entry
+ * that crosses a chunk boundary is mapped separately when requested.<br><br>
+ * <b>Note! mapped memory is released by the garbage collector, not by {@link #close()}. Buffers handed out by this
+ * archive remain readable after the archive has been closed.</b>
+ */
+public class MappedTarArchive implements Closeable
+{
+    private static final String READ_MODE = "r";
+    private static final int CHUNK_SHIFT = 30;
+
+    /**
+     * The size of each mapped chunk of the tar archive (1GB)
+     */
+    public static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+    private final TarIndex index;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * @param tarFile the tar archive to index and map
+     * @throws IOException if the file cannot be opened for reading or mapped
+     */
+    public MappedTarArchive(File tarFile) throws IOException
+    {
+        this(new TarIndex(tarFile));
+    }
+
+    /**
+     * @param index an index of the tar archive to map
+     * @throws IOException if the file cannot be opened for reading or mapped
+     * @throws IllegalArgumentException if the index is the index of a compressed archive
+     */
+    public MappedTarArchive(TarIndex index) throws IOException
+    {
+        if(index.isCompressed()) throw new IllegalArgumentException("index of a compressed archive, read it through its GzipTarIndex: " + index.getTarFile());
+
+        this.index = index;
+        this.file = new RandomAccessFile(index.getTarFile(), READ_MODE);
+
+        try
+        {
+            this.channel = this.file.getChannel();
+
+            long length = this.channel.size();
+            int count = (int)((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+
+            this.chunks = new ByteBuffer[count];
+
+            for(int i = 0; i < count; i++)
+            {
+                long position = (long)i << CHUNK_SHIFT;
+                this.chunks[i] = this.channel.map(MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, length - position));
+            }
+        } catch (IOException e)
+        {
+            IOUtils.closeQuietly(this.file);
+            throw e;
+        }
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a read-only buffer holding the content of the file will be present in the response, if not it will be absent
+     * @throws IOException if the file crosses a chunk boundary and cannot be mapped
+     */
+    public Optional<ByteBuffer> get(String key) throws IOException
+    {
+        Optional<TarHeader> header = this.index.get(key);
+
+        return header.isPresent() ? Optional.of(getBuffer(header.get())) : Optional.<ByteBuffer>absent();
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to get the content of
+     * @return a read-only buffer holding the content of the file, positioned at 0 and limited to the size of the file
+     * @throws IOException if the file crosses a chunk boundary and cannot be mapped
+     * @throws IllegalArgumentException if the file is too large to fit in a {@link ByteBuffer}
+     */
+    public ByteBuffer getBuffer(TarHeader tarHeader) throws IOException
+    {
+        long offset = tarHeader.getTarFileOffset();
+        long size = tarHeader.getSize();
+
+        if(size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("file too large to map: " + tarHeader.getName() + " (" + size + " bytes)");
+        }
+
+        int chunk = (int)(offset >>> CHUNK_SHIFT);
+        int position = (int)(offset & (CHUNK_SIZE - 1));
+
+        if(chunk < this.chunks.length && position + size <= this.chunks[chunk].capacity())
+        {
+            ByteBuffer slice = this.chunks[chunk].duplicate();
+            slice.limit(position + (int)size).position(position);
+
+            return slice.slice().asReadOnlyBuffer();
+        }
+
+        return this.channel.map(MapMode.READ_ONLY, offset, size).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to create the input stream for
+     * @return an input stream reading the content of the file straight from the mapping
+     * @throws IOException if the file crosses a chunk boundary and cannot be mapped
+     */
+    public InputStream getInputStream(TarHeader tarHeader) throws IOException
+    {
+        return new ByteBufferInputStream(getBuffer(tarHeader));
+    }
+
+    /**
+     * @return the index of the mapped tar archive
+     */
+    public TarIndex getIndex()
+    {
+        return this.index;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.file.close();
+    }
+}
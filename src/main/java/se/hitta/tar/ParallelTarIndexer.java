@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+
+import static se.hitta.tar.TarHeader.*;
+
+/**
+ * Builds a {@link TarIndex} by scanning byte ranges (segments) of a tar archive in parallel on a {@link ForkJoinPool}.<br>
+ * A worker scanning a segment doesn't know where the first header of the segment is, so it searches for the first
+ * block with the ustar magic and a valid header checksum, and follows the chain of headers from there. The chains
+ * are then stitched together in order: a segment is only accepted if its chain starts exactly where the chain of the
+ * previous segment ended. If it doesn't (e.g. because an archived file contains a tar archive itself), the segment is
+ * scanned again, sequentially, from where the previous chain ended. The result is therefore always the same as
+ * indexing the archive sequentially.<br>
+ * Archives without ustar headers (old v7 archives) are indexed correctly too, but sequentially.<br>
+ * Checksums (see {@link TarIndex.Option#CHECKSUMS}) are computed on the same pool.
+ */
+public class ParallelTarIndexer
+{
+    private static final String READ_MODE = "r";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The default size of the segments scanned in parallel (256MB)
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+
+    private final ForkJoinPool pool;
+    private final long segmentSize;
+
+    /**
+     * @param pool the pool to scan segments on
+     */
+    public ParallelTarIndexer(ForkJoinPool pool)
+    {
+        this(pool, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param pool the pool to scan segments on
+     * @param segmentSize the size of the segments scanned in parallel (rounded up to a multiple of {@link TarHeader#HEADER_BLOCK})
+     */
+    public ParallelTarIndexer(ForkJoinPool pool, long segmentSize)
+    {
+        if(segmentSize <= 0) throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+
+        this.pool = pool;
+        this.segmentSize = (segmentSize + HEADER_BLOCK - 1) / HEADER_BLOCK * HEADER_BLOCK;
+    }
+
+    /**
+     * @param tarFile the tar archive to index
+     * @param options options for how the index is built
+     * @return the newly built {@link TarIndex}
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public TarIndex index(File tarFile, TarIndex.Option... options) throws IOException
+    {
+        long begin = TarMetrics.start();
+        Date lastModified = TarIndex.lastModified(tarFile);
+        RandomAccessFile file = new RandomAccessFile(tarFile, READ_MODE);
+
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            long end = length - DATA_BLOCK * 2;
+
+            List<Callable<Segment>> tasks = new ArrayList<Callable<Segment>>();
+
+            for(long start = 0; start < end; start += this.segmentSize)
+            {
+                tasks.add(new SegmentScan(channel, start, Math.min(end, start + this.segmentSize), start > 0));
+            }
+
+            List<TarHeader> headers = new ArrayList<TarHeader>();
+            long next = 0;
+
+            for(Future<Segment> future : this.pool.invokeAll(tasks))
+            {
+                Segment segment = future.get();
+
+                if(segment.first != next)
+                {
+                    segment = new SegmentScan(channel, next, segment.end, false).call();
+                }
+
+                headers.addAll(segment.headers);
+                next = segment.next;
+
+                if(segment.endOfArchive) break;
+            }
+
+            TarHeader[] sorted = headers.toArray(new TarHeader[headers.size()]);
+            Arrays.sort(sorted);
+
+            Set<TarIndex.Option> optionSet = TarIndex.toSet(options);
+
+            if(optionSet.contains(TarIndex.Option.CHECKSUMS))
+            {
+                TarChecksums.compute(tarFile, sorted, this.pool);
+            }
+
+            TarIndex index = new TarIndex(tarFile, lastModified, TarHeaderTable.build(sorted, optionSet), Math.max(next, 0), length);
+            TarMetrics.indexBuilt(begin, index);
+
+            return index;
+
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while indexing " + tarFile);
+        } catch (ExecutionException e)
+        {
+            throw new IOException("failed to index " + tarFile, e.getCause());
+        }
+        finally
+        {
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    /**
+     * The headers found in a segment
+     */
+    private static class Segment
+    {
+        private final long end;
+        private final List<TarHeader> headers = new ArrayList<TarHeader>();
+        private long first = -1;
+        private long next;
+        private boolean endOfArchive = false;
+
+        private Segment(long end)
+        {
+            this.end = end;
+        }
+    }
+
+    private static class SegmentScan implements Callable<Segment>
+    {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final boolean search;
+
+        /**
+         * @param search true if the first header has to be searched for, false if a header starts at the start offset
+         */
+        private SegmentScan(FileChannel channel, long start, long end, boolean search)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.search = search;
+        }
+
+        @Override
+        public Segment call() throws IOException
+        {
+            Segment segment = new Segment(this.end);
+            TarBlockReader reader = new TarBlockReader(this.channel, BUFFER_SIZE);
+            long position = this.start;
+
+            if(this.search)
+            {
+                for(; position < this.end; position += HEADER_BLOCK)
+                {
+                    int offset = reader.block(position);
+
+                    if(offset < 0 || TarHeader.isUstarHeader(reader.array(), offset)) break;
+                }
+            }
+
+            segment.first = position;
+
+            while(position < this.end)
+            {
+                int offset = reader.block(position);
+
+                if(offset < 0 || TarBlockReader.isZeroBlock(reader.array(), offset))
+                {
+                    segment.endOfArchive = true;
+                    break;
+                }
+
+                TarHeader header = TarHeader.build(reader.array(), offset, position + HEADER_BLOCK);
+                segment.headers.add(header);
+                position += TarBlockReader.next(header);
+            }
+
+            segment.next = position;
+
+            return segment;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+
+/**
+ * A {@link TarArchive} that follows changes of its tar file, for deploying new versions of an archive without
+ * stopping traffic.<br>
+ * {@link #reload()} checks the identity (inode, where the file system has one), length and modification time of the
+ * file against the current version. If the file has changed, a new index is built from scratch, with the options of
+ * the current index, and a new {@link TarArchive} is opened, while readers keep using the current one. The new archive
+ * is then published atomically, and the old one is closed. Since archives are reference counted, streams
+ * and channels handed out by the old archive keep reading from the old file until they are closed, so a reload causes
+ * neither stalls nor errors for readers.<br>
+ * Reloading is either done by the caller, or by polling on a provided executor. A new version of an archive should be
+ * written to a temporary file and renamed over the old file, so that a half written file is never indexed.
+ */
+public class ReloadingTarArchive implements Closeable
+{
+    private final AtomicReference<TarArchive> current;
+    private final ScheduledFuture<?> polling;
+    private final AtomicLong reloadCount = new AtomicLong();
+    private Object fileKey;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates an archive that is only reloaded by calling {@link #reload()}
+     * @param index an index of the tar archive to open
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public ReloadingTarArchive(TarIndex index) throws IOException
+    {
+        this.fileKey = fileKey(index.getTarFile());
+        this.current = new AtomicReference<TarArchive>(new TarArchive(index));
+        this.polling = null;
+    }
+
+    /**
+     * Creates an archive that is reloaded by polling its file on an executor. Failed reloads (e.g. if the file is
+     * missing for a moment) are reported to the installed {@link TarMetricsListener}, and retried on the next poll,
+     * while the current archive is kept.
+     * @param index an index of the tar archive to open
+     * @param executor the executor to poll on, it isn't shut down when the archive is closed
+     * @param pollInterval the time between two polls
+     * @param unit the unit of the poll interval
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public ReloadingTarArchive(final TarIndex index, ScheduledExecutorService executor, long pollInterval, TimeUnit unit) throws IOException
+    {
+        this.fileKey = fileKey(index.getTarFile());
+        this.current = new AtomicReference<TarArchive>(new TarArchive(index));
+        this.polling = executor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    reload();
+                } catch (Exception e)
+                {
+                    //keep the current archive, and try again on the next poll (a task that throws is never run again)
+                    TarMetrics.reloadFailed(index.getTarFile(), e);
+                }
+            }
+        }, pollInterval, pollInterval, unit);
+    }
+
+    /**
+     * Reloads the archive if its file has changed since it was indexed
+     * @return true if a new version of the archive was published
+     * @throws IOException if the file cannot be indexed or opened, the current archive is kept if so
+     */
+    public synchronized boolean reload() throws IOException
+    {
+        if(this.closed) return false;
+
+        TarArchive archive = this.current.get();
+        TarIndex index = archive.getIndex();
+        File tarFile = index.getTarFile();
+        Object fileKey = fileKey(tarFile);
+
+        if(Objects.equal(fileKey, this.fileKey) && tarFile.length() == index.getArchiveLength() && TarIndex.lastModified(tarFile).equals(index.getLastModified()))
+        {
+            return false;
+        }
+
+        //a replaced archive can't be refreshed by scanning appended files, it may share nothing with the old one
+        TarIndex replacement = new TarIndex(tarFile, index.getHeaders().options().toArray(new TarIndex.Option[0]));
+
+        this.current.set(new TarArchive(replacement));
+        this.fileKey = fileKey;
+        this.reloadCount.incrementAndGet();
+        archive.close();
+
+        return true;
+    }
+
+    /**
+     * @return the identity of the file (e.g. its inode), or null if the file system doesn't provide one
+     */
+    private static Object fileKey(File file) throws IOException
+    {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Acquires the current version of the archive. The returned archive has been retained (see
+     * {@link TarArchive#retain()}), so streams and channels opened from it stay readable even if a new version is
+     * published in the meantime. A replaced version is closed though, so no new streams or channels can be opened from
+     * it. Headers are only valid for the version of the archive they were looked up in.<br>
+     * <b>Note! the caller has to call {@link TarArchive#release()} when done with the archive.</b>
+     * @return the retained archive
+     * @throws IOException if this archive has been closed
+     */
+    public TarArchive acquire() throws IOException
+    {
+        for(;;)
+        {
+            if(this.closed) throw new IOException("archive closed");
+
+            TarArchive archive = this.current.get();
+
+            if(archive.retain()) return archive;
+
+            //replaced in the meantime, try again
+        }
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, an input stream for the file will be present in the response, if not it will be absent
+     * @throws IOException if this archive has been closed
+     */
+    public Optional<InputStream> newInputStream(String key) throws IOException
+    {
+        TarArchive archive = acquire();
+
+        try
+        {
+            Optional<TarHeader> header = archive.get(key);
+
+            return header.isPresent() ? Optional.of(archive.newInputStream(header.get(), true)) : Optional.<InputStream>absent();
+        }
+        finally
+        {
+            archive.release();
+        }
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a channel for the file will be present in the response, if not it will be absent
+     * @throws IOException if this archive has been closed
+     */
+    public Optional<TarEntryChannel> newChannel(String key) throws IOException
+    {
+        TarArchive archive = acquire();
+
+        try
+        {
+            Optional<TarHeader> header = archive.get(key);
+
+            return header.isPresent() ? Optional.of(archive.newChannel(header.get(), true)) : Optional.<TarEntryChannel>absent();
+        }
+        finally
+        {
+            archive.release();
+        }
+    }
+
+    /**
+     * @return the index of the current version of the archive
+     */
+    public TarIndex getIndex()
+    {
+        return this.current.get().getIndex();
+    }
+
+    /**
+     * @return the number of times a new version of the archive has been published
+     */
+    public long getReloadCount()
+    {
+        return this.reloadCount.get();
+    }
+
+    /**
+     * Stops polling and closes the current version of the archive. Streams and channels in flight are not affected.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(!this.closed)
+        {
+            this.closed = true;
+
+            if(this.polling != null) this.polling.cancel(false);
+
+            this.current.get().close();
+        }
+    }
+}
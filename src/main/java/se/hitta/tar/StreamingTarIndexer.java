@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Builds a {@link TarIndex} in a single pass over a tar archive read from a non-seekable source, like a pipe or a
+ * socket. The bytes of archived files are never looked at, only counted, and the headers are recorded with their
+ * offsets in the stream.<br>
+ * The source can be written (teed) to the tar archive while it is indexed, so the index is ready as soon as the
+ * archive has been written and the archive never has to be read back from disk.<br><br>
+ * <b>Note! the source is read to its end, but not closed.</b>
+ */
+public class StreamingTarIndexer
+{
+    /**
+     * The size of the read buffer (1MB)
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private final TarIndex.Option[] options;
+
+    /**
+     * @param options options for how the indexes are built
+     */
+    public StreamingTarIndexer(TarIndex.Option... options)
+    {
+        this.options = options.clone();
+    }
+
+    /**
+     * Writes the tar archive read from the source to the provided file, and indexes it.
+     * @param source the tar archive
+     * @param tarFile the file to write the tar archive to (it is created, or truncated if it exists)
+     * @return the newly built {@link TarIndex} of the written file
+     * @throws IOException if the source cannot be read or the file cannot be written
+     */
+    public TarIndex index(InputStream source, File tarFile) throws IOException
+    {
+        return index(Channels.newChannel(source), tarFile, true);
+    }
+
+    /**
+     * Writes the tar archive read from the source to the provided file, and indexes it.
+     * @param source the tar archive
+     * @param tarFile the file to write the tar archive to (it is created, or truncated if it exists)
+     * @return the newly built {@link TarIndex} of the written file
+     * @throws IOException if the source cannot be read or the file cannot be written
+     */
+    public TarIndex index(ReadableByteChannel source, File tarFile) throws IOException
+    {
+        return index(source, tarFile, true);
+    }
+
+    /**
+     * @param source the tar archive
+     * @param tarFile the file the tar archive is written to
+     * @param write true if the source should be written to the file, false if it is a copy of what is (or will be)
+     *            written to the file by someone else
+     * @return the newly built {@link TarIndex} of the file
+     * @throws IOException if the source cannot be read or the file cannot be written
+     */
+    public TarIndex index(ReadableByteChannel source, File tarFile, boolean write) throws IOException
+    {
+        long start = TarMetrics.start();
+        FileOutputStream out = write ? new FileOutputStream(tarFile) : null;
+
+        try
+        {
+            FileChannel channel = write ? out.getChannel() : null;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            TarStreamScanner scanner = new TarStreamScanner(TarIndex.toSet(this.options).contains(TarIndex.Option.CHECKSUMS));
+
+            while(source.read(buffer) >= 0)
+            {
+                buffer.flip();
+
+                if(channel != null)
+                {
+                    ByteBuffer written = buffer.duplicate();
+
+                    while(written.hasRemaining())
+                    {
+                        channel.write(written);
+                    }
+                }
+
+                scanner.scan(buffer);
+                buffer.clear();
+            }
+
+            if(out != null)
+            {
+                out.close();
+            }
+
+            TarIndex index = new TarIndex(tarFile, TarIndex.lastModified(tarFile), scanner.build(TarIndex.toSet(this.options)), scanner.getEndOffset(), scanner.getPosition());
+            TarMetrics.indexBuilt(start, index);
+
+            return index;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Optional;
+
+/**
+ * A long lived handle to an indexed tar archive.<br>
+ * The archive keeps a single {@link FileChannel} open, and every stream or channel it hands out reads from it using
+ * positional reads. There is no shared file pointer, so any number of threads may read concurrently without locking,
+ * and no file is opened or closed per request.<br>
+ * The archive is reference counted. Every stream or channel it hands out holds a reference until it is closed, and
+ * the shared {@link FileChannel} is only closed when the archive has been closed and all of its streams and
+ * channels have been closed too. Closing an archive thus never breaks reads in flight.<br><br>
+ * <b>Note! a thread being interrupted while reading closes the shared {@link FileChannel} (this is how
+ * {@link java.nio.channels.InterruptibleChannel}s behave), leaving the whole archive unusable.</b>
+ */
+public class TarArchive implements Closeable
+{
+    private static final String READ_MODE = "r";
+
+    /**
+     * The default largest gap between files read together by {@link #read(Collection)} (64KB)
+     */
+    public static final int DEFAULT_MAX_GAP = 64 << 10;
+
+    /**
+     * The largest single read done by {@link #read(Collection, int)} for files stored close to each other (8MB). A
+     * single file larger than this is still read in one go.
+     */
+    public static final int MAX_BATCH_READ = 8 << 20;
+
+
+    private final TarIndex index;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param tarFile the tar archive to index and open
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public TarArchive(File tarFile) throws IOException
+    {
+        this(new TarIndex(tarFile));
+    }
+
+    /**
+     * @param index an index of the tar archive to open
+     * @throws IOException if the file cannot be opened for reading
+     * @throws IllegalArgumentException if the index is the index of a compressed archive
+     */
+    public TarArchive(TarIndex index) throws IOException
+    {
+        if(index.isCompressed()) throw new IllegalArgumentException("index of a compressed archive, read it through its GzipTarIndex: " + index.getTarFile());
+
+        this.index = index;
+        this.file = new RandomAccessFile(index.getTarFile(), READ_MODE);
+        this.channel = this.file.getChannel();
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     * @see TarIndex#get(String)
+     */
+    public Optional<TarHeader> get(String key)
+    {
+        return this.index.get(key);
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to create the input stream for
+     * @return an input stream for the file, reading from the shared channel of this archive
+     * @throws IOException if the archive has been closed
+     */
+    public InputStream newInputStream(TarHeader tarHeader) throws IOException
+    {
+        return newInputStream(tarHeader, false);
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to create the input stream for
+     * @param retained true if the caller holds a reference acquired by {@link #retain()}, which allows it to open the
+     *            stream even if the archive has been closed since
+     * @return an input stream for the file, reading from the shared channel of this archive
+     * @throws IOException if the archive has been closed, and the caller holds no reference
+     */
+    InputStream newInputStream(TarHeader tarHeader, boolean retained) throws IOException
+    {
+        retainOrFail(retained);
+
+        return new TarEntryInputStream(tarHeader, this.index.getTarFile(), this.channel, new Reference());
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to create the channel for
+     * @return a channel for the file, reading from the shared channel of this archive
+     * @throws IOException if the archive has been closed
+     */
+    public TarEntryChannel newChannel(TarHeader tarHeader) throws IOException
+    {
+        return newChannel(tarHeader, false);
+    }
+
+    /**
+     * @param tarHeader the {@link TarHeader} for the file to create the channel for
+     * @param retained true if the caller holds a reference acquired by {@link #retain()}, which allows it to open the
+     *            channel even if the archive has been closed since
+     * @return a channel for the file, reading from the shared channel of this archive
+     * @throws IOException if the archive has been closed, and the caller holds no reference
+     */
+    TarEntryChannel newChannel(TarHeader tarHeader, boolean retained) throws IOException
+    {
+        retainOrFail(retained);
+
+        return new TarEntryChannel(tarHeader, this.index.getTarFile(), this.channel, new Reference());
+    }
+
+    /**
+     * Reads a range of the content of a file in this archive with a single positional read on the shared channel,
+     * like {@link FileChannel#read(ByteBuffer, long)} does. Positioning is free, so any part of a large file can be
+     * read without reading what comes before it.
+     * @param tarHeader the {@link TarHeader} for the file to read
+     * @param position the position within the file of the first byte to read
+     * @param dst the buffer to read into, at most up to the end of the file
+     * @return the number of bytes read (possibly zero), or -1 if the position is at or past the end of the file
+     * @throws IOException if the archive has been closed or reading fails
+     * @throws IllegalArgumentException if position is negative
+     */
+    public int read(TarHeader tarHeader, long position, ByteBuffer dst) throws IOException
+    {
+        if(position < 0) throw new IllegalArgumentException("negative position: " + position);
+        if(position >= tarHeader.getSize()) return -1;
+
+        retainOrFail();
+
+        try
+        {
+            long available = tarHeader.getSize() - position;
+
+            if(dst.remaining() <= available)
+            {
+                return this.channel.read(dst, tarHeader.getTarFileOffset() + position);
+            }
+
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int)available);
+
+            try
+            {
+                return this.channel.read(dst, tarHeader.getTarFileOffset() + position);
+            }
+            finally
+            {
+                dst.limit(limit);
+            }
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Reads the header block of a file in this archive, for the fields of the header that aren't indexed
+     * @param tarHeader the {@link TarHeader} of the file
+     * @return the 512 byte header block preceding the content of the file
+     * @throws IOException if the archive has been closed or reading fails
+     */
+    byte[] readHeaderBlock(TarHeader tarHeader) throws IOException
+    {
+        ByteBuffer block = ByteBuffer.allocate(TarHeader.HEADER_BLOCK);
+        long position = tarHeader.getTarFileOffset() - TarHeader.HEADER_BLOCK;
+
+        retainOrFail();
+
+        try
+        {
+            while(block.hasRemaining())
+            {
+                if(this.channel.read(block, position + block.position()) < 0)
+                {
+                    throw new EOFException("archive ended within the header of " + tarHeader.getName() + ": " + this.index.getTarFile());
+                }
+            }
+
+            return block.array();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Transfers the content of a file in this archive to the target channel using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which allows the operating system to send the
+     * bytes straight from the page cache (e.g. using sendfile) without copying them through the heap.
+     * @param tarHeader the {@link TarHeader} for the file to transfer
+     * @param target the channel to transfer the file to
+     * @return the number of bytes transferred
+     * @throws IOException if the archive has been closed or the transfer fails
+     * @see #transferTo(TarHeader, long, long, WritableByteChannel)
+     */
+    public long transferTo(TarHeader tarHeader, WritableByteChannel target) throws IOException
+    {
+        return transferTo(tarHeader, 0, tarHeader.getSize(), target);
+    }
+
+    /**
+     * Transfers a range of the content of a file in this archive to the target channel using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.<br>
+     * The range is truncated at the end of the file. If the target is a non-blocking channel that cannot accept more
+     * bytes, the transfer stops early and the number of bytes transferred so far is returned.
+     * @param tarHeader the {@link TarHeader} for the file to transfer
+     * @param position the position within the file of the first byte to transfer
+     * @param count the maximum number of bytes to transfer
+     * @param target the channel to transfer the file to
+     * @return the number of bytes transferred
+     * @throws IOException if the archive has been closed or the transfer fails
+     * @throws IllegalArgumentException if position or count is negative
+     */
+    public long transferTo(TarHeader tarHeader, long position, long count, WritableByteChannel target) throws IOException
+    {
+        if(position < 0 || count < 0) throw new IllegalArgumentException("invalid range: position=" + position + ", count=" + count);
+        
+        retainOrFail();
+
+        try
+        {
+            long remaining = Math.min(count, Math.max(0, tarHeader.getSize() - position));
+            long offset = tarHeader.getTarFileOffset() + position;
+            long transferred = 0;
+
+            while(transferred < remaining)
+            {
+                long n = this.channel.transferTo(offset + transferred, remaining - transferred, target);
+
+                if(n <= 0) break;
+
+                transferred += n;
+            }
+
+            return transferred;
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * Reads the content of several files at once, see {@link #read(Collection, int)}. Files at most
+     * {@link #DEFAULT_MAX_GAP} bytes apart are read together.
+     * @param keys the paths of the files, as saved in the tar archive (i.e. including directories)
+     * @return read-only buffers holding the content of the files that were found, by path
+     * @throws IOException if the archive has been closed or reading fails
+     */
+    public Map<String, ByteBuffer> read(Collection<String> keys) throws IOException
+    {
+        return read(keys, DEFAULT_MAX_GAP);
+    }
+
+    /**
+     * Reads the content of several files at once. The files are read in the order they are stored in the archive,
+     * and files that are stored next to (or close to) each other are read with a single positional read of up to
+     * {@link #MAX_BATCH_READ} bytes, so a batch of files that are laid out together (see {@link TarArchiveWriter})
+     * takes a few large reads rather than one read per file. The content of each file is a slice of the buffer it was
+     * read into.
+     * @param keys the paths of the files, as saved in the tar archive (i.e. including directories)
+     * @param maxGap the largest number of bytes between two files that are read together (the bytes in between are
+     *            read too, and thrown away)
+     * @return read-only buffers holding the content of the files that were found, by path, in the iteration order of
+     *         the provided paths
+     * @throws IOException if the archive has been closed or reading fails
+     * @throws IllegalArgumentException if the max gap is negative, or a file is too large to fit in a {@link ByteBuffer}
+     */
+    public Map<String, ByteBuffer> read(Collection<String> keys, int maxGap) throws IOException
+    {
+        if(maxGap < 0) throw new IllegalArgumentException("negative gap: " + maxGap);
+
+        Map<String, ByteBuffer> result = new LinkedHashMap<String, ByteBuffer>();
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for(String key : keys)
+        {
+            Optional<TarHeader> header = this.index.get(key);
+
+            if(header.isPresent() && !result.containsKey(key))
+            {
+                if(header.get().getSize() > Integer.MAX_VALUE)
+                {
+                    throw new IllegalArgumentException("file too large to read: " + key + " (" + header.get().getSize() + " bytes)");
+                }
+
+                entries.add(new Entry(key, header.get()));
+                result.put(key, null); //keeps the order of the keys
+            }
+        }
+
+        Collections.sort(entries);
+
+        retainOrFail();
+
+        try
+        {
+            int first = 0;
+
+            for(int i = 1; i <= entries.size(); i++)
+            {
+                if(i < entries.size())
+                {
+                    long start = entries.get(first).offset();
+                    long end = entries.get(i - 1).end();
+                    Entry next = entries.get(i);
+
+                    if(next.offset() - end <= maxGap && next.end() - start <= MAX_BATCH_READ)
+                    {
+                        continue;
+                    }
+                }
+
+                readBatch(entries.subList(first, i), result);
+                first = i;
+            }
+        }
+        finally
+        {
+            release();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads files sorted by offset with a single positional read, from the start of the first to the end of the last
+     */
+    private void readBatch(List<Entry> entries, Map<String, ByteBuffer> result) throws IOException
+    {
+        if(entries.isEmpty()) return;
+
+        long start = entries.get(0).offset();
+        long end = start;
+
+        for(Entry entry : entries)
+        {
+            end = Math.max(end, entry.end());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+
+        while(buffer.hasRemaining())
+        {
+            if(this.channel.read(buffer, start + buffer.position()) < 0)
+            {
+                throw new EOFException("archive ended before " + end + ": " + this.index.getTarFile());
+            }
+        }
+
+        for(Entry entry : entries)
+        {
+            ByteBuffer slice = buffer.duplicate();
+            int position = (int)(entry.offset() - start);
+            slice.limit(position + (int)entry.header.getSize()).position(position);
+
+            result.put(entry.key, slice.slice().asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * @return the index of this archive
+     */
+    public TarIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * @return true if the archive has been closed
+     */
+    public boolean isClosed()
+    {
+        return this.closed.get();
+    }
+
+    /**
+     * Acquires a reference to the archive, keeping the shared channel open until {@link #release()} is called, even
+     * if the archive is closed in the meantime. This is what every stream and channel handed out by the archive does.
+     * @return true if a reference was acquired, false if the archive has already been closed
+     */
+    public boolean retain()
+    {
+        if(this.closed.get() || !increment()) return false;
+
+        if(this.closed.get())
+        {
+            //closed in the meantime, only references acquired before closing are kept
+            try
+            {
+                release();
+            } catch (IOException e)
+            {
+                //the shared channel failed to close, there is nothing more to do about it
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Increments the reference count, unless the archive has been closed and released
+     */
+    private boolean increment()
+    {
+        for(;;)
+        {
+            int count = this.references.get();
+
+            if(count == 0) return false;
+            if(this.references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Releases a reference acquired by {@link #retain()}
+     * @throws IOException if this was the last reference and the shared channel fails to close
+     */
+    public void release() throws IOException
+    {
+        if(this.references.decrementAndGet() == 0)
+        {
+            this.file.close();
+        }
+    }
+
+    /**
+     * Closes the archive. No new streams, channels or references can be acquired from a closed archive, but the
+     * shared channel is kept open until all streams and channels handed out by the archive (and all references
+     * acquired by {@link #retain()}) have been closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(this.closed.compareAndSet(false, true))
+        {
+            release();
+        }
+    }
+
+    private void retainOrFail() throws IOException
+    {
+        retainOrFail(false);
+    }
+
+    /**
+     * @param retained true if the caller holds a reference, which keeps the reference count above zero
+     */
+    private void retainOrFail(boolean retained) throws IOException
+    {
+        if(!(retained ? increment() : retain())) throw new IOException("archive closed: " + this.index.getTarFile());
+    }
+
+    /**
+     * A file requested by {@link TarArchive#read(Collection, int)}, ordered by offset
+     */
+    private static final class Entry implements Comparable<Entry>
+    {
+        private final String key;
+        private final TarHeader header;
+
+        Entry(String key, TarHeader header)
+        {
+            this.key = key;
+            this.header = header;
+        }
+
+        long offset()
+        {
+            return this.header.getTarFileOffset();
+        }
+
+        long end()
+        {
+            return this.header.getTarFileOffset() + this.header.getSize();
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            return Long.compare(offset(), other.offset());
+        }
+    }
+
+    /**
+     * A reference to the archive that is released once, when closed
+     */
+    private class Reference implements Closeable
+    {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        @Override
+        public void close() throws IOException
+        {
+            if(this.released.compareAndSet(false, true))
+            {
+                release();
+            }
+        }
+    }
+}
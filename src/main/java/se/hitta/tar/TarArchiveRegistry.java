@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Optional;
+
+/**
+ * A registry of {@link TarArchive}s, for serving files from many tar archives without having to keep all of their
+ * indexes in memory (or all of their files open).<br>
+ * Archives are opened lazily on first access. The index of an archive is memory mapped from an index file (see
+ * {@link TarIndex#map(File)}) if there is one in the index directory (refreshing it first if the archive has
+ * changed, see {@link TarIndex#refresh()}), and built (and stored in the index directory) if not, or if it was built
+ * for another archive or with other options. An archive is only indexed by one thread at a time, other threads asking
+ * for the same archive wait for the result.<br>
+ * Archives are known by their canonical paths, so paths that are relative, or go through symbolic links, find the same
+ * open archive and index file as the archive's real path.<br>
+ * The registry keeps the open archives in least recently used order, and closes the least recently used ones when
+ * the total memory used by their indexes, or the number of open archives, exceeds the configured limits. Since
+ * archives are reference counted, closing an archive doesn't break any reads in flight.
+ */
+public class TarArchiveRegistry implements Closeable
+{
+    /**
+     * The suffix of index files, which are named after their tar archives (see {@link #getIndexFile(File)})
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private final File indexDirectory;
+    private final long maxMemoryUsage;
+    private final int maxOpenArchives;
+    private final TarIndex.Option[] options;
+
+    private final ConcurrentMap<File, FutureTask<TarArchive>> loading = new ConcurrentHashMap<File, FutureTask<TarArchive>>();
+    private final LinkedHashMap<File, TarArchive> archives = new LinkedHashMap<File, TarArchive>(16, 0.75f, true);
+    private long memoryUsage = 0;
+    private boolean closed = false;
+
+    /**
+     * @param indexDirectory the directory to keep index files in, or null to always index archives in memory
+     * @param maxMemoryUsage the maximum total memory used by the indexes of open archives (see {@link TarIndex#getMemoryUsage()})
+     * @param maxOpenArchives the maximum number of open archives (and open files)
+     * @param options options for how indexes are built
+     */
+    public TarArchiveRegistry(File indexDirectory, long maxMemoryUsage, int maxOpenArchives, TarIndex.Option... options)
+    {
+        if(maxOpenArchives < 1) throw new IllegalArgumentException("max open archives must be positive: " + maxOpenArchives);
+
+        this.indexDirectory = indexDirectory;
+        this.maxMemoryUsage = maxMemoryUsage;
+        this.maxOpenArchives = maxOpenArchives;
+        this.options = options.clone();
+    }
+
+    /**
+     * Acquires an open archive, opening (and possibly indexing) it if needed. The returned archive has been retained
+     * (see {@link TarArchive#retain()}), so streams and channels opened from it stay readable even if it is evicted
+     * from the registry. An evicted archive is closed though, so no new streams or channels can be opened from it
+     * (acquire it again to get a new one, or use {@link #newInputStream(File, String)}).<br>
+     * <b>Note! the caller has to call {@link TarArchive#release()} when done with the archive.</b>
+     * @param tarFile the tar archive
+     * @return the retained archive
+     * @throws IOException if the archive cannot be opened or indexed, or if the registry has been closed
+     */
+    public TarArchive acquire(File tarFile) throws IOException
+    {
+        File key = tarFile.getCanonicalFile();
+
+        for(;;)
+        {
+            TarArchive archive = lookup(key);
+
+            if(archive == null)
+            {
+                archive = load(key);
+            }
+
+            if(archive.retain())
+            {
+                return archive;
+            }
+
+            //evicted in the meantime, try again
+        }
+    }
+
+    /**
+     * @param tarFile the tar archive
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, an input stream for the file will be present in the response, if not it will be absent
+     * @throws IOException if the archive cannot be opened or indexed, or if the registry has been closed
+     */
+    public Optional<InputStream> newInputStream(File tarFile, String key) throws IOException
+    {
+        TarArchive archive = acquire(tarFile);
+
+        try
+        {
+            Optional<TarHeader> header = archive.get(key);
+
+            return header.isPresent() ? Optional.of(archive.newInputStream(header.get(), true)) : Optional.<InputStream>absent();
+        }
+        finally
+        {
+            archive.release();
+        }
+    }
+
+    /**
+     * @return the number of open archives
+     */
+    public synchronized int size()
+    {
+        return this.archives.size();
+    }
+
+    /**
+     * @return the total memory used by the indexes of the open archives
+     */
+    public synchronized long getMemoryUsage()
+    {
+        return this.memoryUsage;
+    }
+
+    /**
+     * Closes all open archives. Reads in flight are not affected.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        List<TarArchive> closing;
+
+        synchronized(this)
+        {
+            this.closed = true;
+            closing = new ArrayList<TarArchive>(this.archives.values());
+            this.archives.clear();
+            this.memoryUsage = 0;
+        }
+
+        for(TarArchive archive : closing)
+        {
+            IOUtils.closeQuietly(archive);
+        }
+    }
+
+    /**
+     * Closes the open archive if it has changed since it was indexed, so that its index is refreshed when it is
+     * acquired next
+     * @param tarFile the tar archive
+     * @throws IOException if the canonical path of the archive cannot be resolved
+     */
+    void evictIfChanged(File tarFile) throws IOException
+    {
+        File key = tarFile.getCanonicalFile();
+        TarArchive archive;
+
+        synchronized(this)
+        {
+            archive = this.archives.get(key);
+        }
+
+        if(archive == null || archive.getIndex().isCurrent()) return;
+
+        synchronized(this)
+        {
+            if(!this.archives.remove(key, archive)) return;
+
+            this.memoryUsage -= archive.getIndex().getMemoryUsage();
+        }
+
+        IOUtils.closeQuietly(archive);
+    }
+
+    private synchronized TarArchive lookup(File key) throws IOException
+    {
+        if(this.closed) throw new IOException("registry closed");
+
+        return this.archives.get(key);
+    }
+
+    private TarArchive load(final File key) throws IOException
+    {
+        FutureTask<TarArchive> task = new FutureTask<TarArchive>(new Callable<TarArchive>()
+        {
+            @Override
+            public TarArchive call() throws IOException
+            {
+                TarArchive archive = lookup(key);
+
+                return archive != null ? archive : register(key, new TarArchive(loadIndex(key)));
+            }
+        });
+
+        FutureTask<TarArchive> existing = this.loading.putIfAbsent(key, task);
+
+        if(existing == null)
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                this.loading.remove(key, task);
+            }
+        }
+        else
+        {
+            task = existing;
+        }
+
+        try
+        {
+            return task.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading " + key);
+        } catch (ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+
+            throw new IOException("failed to load " + key, e.getCause());
+        }
+    }
+
+    private TarIndex loadIndex(File tarFile) throws IOException
+    {
+        if(this.indexDirectory == null)
+        {
+            return new TarIndex(tarFile, this.options);
+        }
+
+        File indexFile = getIndexFile(tarFile);
+
+        if(indexFile.exists())
+        {
+            try
+            {
+                TarIndex index = TarIndex.map(indexFile);
+
+                if(isIndexOf(index, tarFile))
+                {
+                    TarIndex refreshed = index.refresh();
+
+                    if(refreshed != index)
+                    {
+                        refreshed.store(indexFile);
+                    }
+
+                    return refreshed;
+                }
+
+                //built for another archive, or with other options, rebuild it
+            } catch (IOException e)
+            {
+                //corrupt or from an incompatible version, rebuild it
+            }
+        }
+
+        TarIndex index = new TarIndex(tarFile, this.options);
+        index.store(indexFile);
+
+        return index;
+    }
+
+    /**
+     * @return true if the index has been built for the archive, with the options of this registry
+     */
+    private boolean isIndexOf(TarIndex index, File tarFile) throws IOException
+    {
+        if(!index.getTarFile().getCanonicalFile().equals(tarFile.getCanonicalFile())) return false;
+
+        //mapped indexes are always off heap
+        Set<TarIndex.Option> expected = TarIndex.toSet(this.options);
+        Set<TarIndex.Option> actual = index.getHeaders().options();
+        expected.remove(TarIndex.Option.OFF_HEAP);
+        actual.remove(TarIndex.Option.OFF_HEAP);
+
+        return expected.equals(actual);
+    }
+
+    /**
+     * Index files are named after both the name and the canonical path of their archives, so that archives with the
+     * same name in different directories get different index files
+     * @param tarFile a tar archive
+     * @return the index file of the archive in the index directory, or null if the registry has no index directory
+     * @throws IOException if the canonical path of the archive cannot be resolved
+     */
+    File getIndexFile(File tarFile) throws IOException
+    {
+        if(this.indexDirectory == null) return null;
+
+        String path = tarFile.getCanonicalPath();
+        long hash = 0xcbf29ce484222325L;
+
+        //64 bit FNV-1a
+        for(int i = 0; i < path.length(); i++)
+        {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+
+        return new File(this.indexDirectory, tarFile.getName() + "-" + String.format("%016x", hash) + INDEX_SUFFIX);
+    }
+
+    private TarArchive register(File key, TarArchive archive) throws IOException
+    {
+        List<TarArchive> evicted = new ArrayList<TarArchive>();
+
+        synchronized(this)
+        {
+            if(this.closed)
+            {
+                archive.close();
+                throw new IOException("registry closed");
+            }
+
+            this.archives.put(key, archive);
+            this.memoryUsage += archive.getIndex().getMemoryUsage();
+
+            Iterator<Map.Entry<File, TarArchive>> eldest = this.archives.entrySet().iterator();
+
+            while(this.archives.size() > 1 && (this.archives.size() > this.maxOpenArchives || this.memoryUsage > this.maxMemoryUsage))
+            {
+                TarArchive victim = eldest.next().getValue();
+                eldest.remove();
+                this.memoryUsage -= victim.getIndex().getMemoryUsage();
+                evicted.add(victim);
+            }
+        }
+
+        for(TarArchive victim : evicted)
+        {
+            IOUtils.closeQuietly(victim);
+        }
+
+        return archive;
+    }
+}
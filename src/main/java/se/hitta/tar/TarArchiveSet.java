@@ -0,0 +1,296 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Optional;
+
+/**
+ * A set of tar archives in a {@link TarArchiveRegistry}, for finding a file without knowing which archive holds it
+ * (e.g. when files are split over archives by date and region).<br>
+ * Each archive in the set has a {@link TarBloomFilter} over its names. A lookup hashes the key once, tests it against
+ * the filters of all archives, and only looks in the indexes of the archives whose filters might contain it, so that
+ * typically a single index is looked in (and loaded by the registry) per lookup.<br>
+ * Filters are built when archives are added, and stored next to their index files (see
+ * {@link TarBloomFilter#FILTER_SUFFIX}) if the registry has an index directory. A stored filter is reused as long as
+ * its archive is unchanged and it has the bits per entry of the set, so adding an archive that has been added before
+ * doesn't load its index. When a filter rules out an archive that has changed since the filter was built (e.g. files
+ * have been appended to it), the filter is rebuilt, so appended files are found.
+ */
+public class TarArchiveSet
+{
+    private final TarArchiveRegistry registry;
+    private final int bitsPerEntry;
+    private volatile Member[] members = new Member[0];
+
+    /**
+     * @param registry the registry to open the archives in
+     */
+    public TarArchiveSet(TarArchiveRegistry registry)
+    {
+        this(registry, TarBloomFilter.DEFAULT_BITS_PER_ENTRY);
+    }
+
+    /**
+     * @param registry the registry to open the archives in
+     * @param bitsPerEntry the number of filter bits per indexed name, more bits make needless index lookups rarer
+     */
+    public TarArchiveSet(TarArchiveRegistry registry, int bitsPerEntry)
+    {
+        if(bitsPerEntry < 1) throw new IllegalArgumentException("bits per entry must be positive: " + bitsPerEntry);
+
+        this.registry = registry;
+        this.bitsPerEntry = bitsPerEntry;
+    }
+
+    /**
+     * Adds an archive to the set, or rebuilds its filter if it is already in the set
+     * @param tarFile the tar archive
+     * @throws IOException if the archive cannot be opened or indexed, or if the filter cannot be stored
+     */
+    public void add(File tarFile) throws IOException
+    {
+        File key = tarFile.getCanonicalFile();
+        Member member = new Member(key, loadFilter(key));
+
+        synchronized(this)
+        {
+            Member[] members = this.members;
+
+            for(int i = 0; i < members.length; i++)
+            {
+                if(members[i].tarFile.equals(key))
+                {
+                    Member[] replaced = members.clone();
+                    replaced[i] = member;
+                    this.members = replaced;
+
+                    return;
+                }
+            }
+
+            Member[] appended = Arrays.copyOf(members, members.length + 1);
+            appended[members.length] = member;
+            this.members = appended;
+        }
+    }
+
+    /**
+     * Removes an archive from the set. The archive isn't closed, and its stored filter is kept.
+     * @param tarFile the tar archive
+     * @return true if the archive was in the set
+     * @throws IOException if the canonical path of the archive cannot be resolved
+     */
+    public synchronized boolean remove(File tarFile) throws IOException
+    {
+        File key = tarFile.getCanonicalFile();
+        Member[] members = this.members;
+
+        for(int i = 0; i < members.length; i++)
+        {
+            if(members[i].tarFile.equals(key))
+            {
+                Member[] removed = new Member[members.length - 1];
+                System.arraycopy(members, 0, removed, 0, i);
+                System.arraycopy(members, i + 1, removed, i, removed.length - i);
+                this.members = removed;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the archive holding a file. Archives are looked in in the order they were added, so if several archives
+     * hold the file, the first one added is found.
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, the archive holding the file will be present in the response, if not it will be absent
+     * @throws IOException if an archive cannot be opened or indexed
+     */
+    public Optional<File> locate(String key) throws IOException
+    {
+        int hash = TarHeaderTable.hash(key);
+
+        for(Member member : this.members)
+        {
+            if(!mightContain(member, hash)) continue;
+
+            TarArchive archive = this.registry.acquire(member.tarFile);
+
+            try
+            {
+                if(archive.get(key).isPresent()) return Optional.of(member.tarFile);
+            }
+            finally
+            {
+                archive.release();
+            }
+        }
+
+        return Optional.absent();
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found in any of the archives, an input stream for the file will be present in the response, if not it will be absent
+     * @throws IOException if an archive cannot be opened or indexed
+     * @see #locate(String)
+     */
+    public Optional<InputStream> newInputStream(String key) throws IOException
+    {
+        int hash = TarHeaderTable.hash(key);
+
+        for(Member member : this.members)
+        {
+            if(!mightContain(member, hash)) continue;
+
+            Optional<InputStream> input = this.registry.newInputStream(member.tarFile, key);
+
+            if(input.isPresent()) return input;
+        }
+
+        return Optional.absent();
+    }
+
+    /**
+     * @return the archives in the set, in the order they were added
+     */
+    public List<File> getTarFiles()
+    {
+        List<File> tarFiles = new ArrayList<File>();
+
+        for(Member member : this.members)
+        {
+            tarFiles.add(member.tarFile);
+        }
+
+        return tarFiles;
+    }
+
+    /**
+     * @return the number of archives in the set
+     */
+    public int size()
+    {
+        return this.members.length;
+    }
+
+    /**
+     * @return the number of bytes used by the filters of the archives (the indexes are accounted for by the registry)
+     */
+    public long getMemoryUsage()
+    {
+        long memoryUsage = 0;
+
+        for(Member member : this.members)
+        {
+            memoryUsage += member.filter.getMemoryUsage();
+        }
+
+        return memoryUsage;
+    }
+
+    /**
+     * A filter only rules out the names of its archive as it was when the filter was built, so the filter of an
+     * archive that has changed since is rebuilt before the archive is ruled out
+     */
+    private boolean mightContain(Member member, int hash) throws IOException
+    {
+        if(member.filter.mightContain(hash)) return true;
+        if(member.filter.isCurrent(member.tarFile)) return false;
+
+        Member rebuilt = new Member(member.tarFile, loadFilter(member.tarFile));
+
+        synchronized(this)
+        {
+            Member[] members = this.members;
+
+            for(int i = 0; i < members.length; i++)
+            {
+                if(members[i] == member)
+                {
+                    Member[] replaced = members.clone();
+                    replaced[i] = rebuilt;
+                    this.members = replaced;
+                }
+            }
+        }
+
+        return rebuilt.filter.mightContain(hash);
+    }
+
+    private TarBloomFilter loadFilter(File tarFile) throws IOException
+    {
+        File indexFile = this.registry.getIndexFile(tarFile);
+        File filterFile = indexFile == null ? null : new File(indexFile.getPath() + TarBloomFilter.FILTER_SUFFIX);
+
+        if(filterFile != null && filterFile.exists())
+        {
+            try
+            {
+                TarBloomFilter filter = TarBloomFilter.load(filterFile);
+
+                if(filter.isCurrent(tarFile) && filter.getBitsPerEntry() == this.bitsPerEntry) return filter;
+            } catch (IOException e)
+            {
+                //corrupt or from an incompatible version, rebuild it
+            }
+        }
+
+        //an open archive may have been indexed before it changed
+        this.registry.evictIfChanged(tarFile);
+
+        TarBloomFilter filter;
+        TarArchive archive = this.registry.acquire(tarFile);
+
+        try
+        {
+            filter = TarBloomFilter.build(archive.getIndex(), this.bitsPerEntry);
+        }
+        finally
+        {
+            archive.release();
+        }
+
+        if(filterFile != null)
+        {
+            filter.store(filterFile);
+        }
+
+        return filter;
+    }
+
+    private static final class Member
+    {
+        private final File tarFile;
+        private final TarBloomFilter filter;
+
+        private Member(File tarFile, TarBloomFilter filter)
+        {
+            this.tarFile = tarFile;
+            this.filter = filter;
+        }
+    }
+}
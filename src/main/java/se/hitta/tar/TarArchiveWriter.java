@@ -0,0 +1,648 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+import static se.hitta.tar.TarHeader.*;
+
+/**
+ * Writes a ustar tar archive, and builds the {@link TarIndex} of the archive while writing it, so the archive never
+ * has to be scanned to be indexed.<br>
+ * Entries are written through a large buffer with positional writes on a {@link FileChannel}, and files are copied
+ * into the archive with {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.<br>
+ * By default entries are written in the order they are added. With a layout, entries are staged in a temporary file
+ * next to the archive, and written in layout order when the archive is finished. Laying out entries that are read
+ * together (or the most frequently read entries, see {@link #byAccessCount(Map)}) next to each other makes them share
+ * pages and readahead when the archive is served later.<br>
+ * Names are limited to {@link TarHeader#NAMELEN} bytes (the name field of the header), since the ustar name prefix
+ * isn't read by this library.<br><br>
+ * <b>Note! the writer isn't thread safe. Closing a writer that hasn't been finished finishes the archive, use
+ * {@link #abort()} to discard it.</b>
+ */
+public class TarArchiveWriter implements Closeable
+{
+    private static final String WRITE_MODE = "rw";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The size of the write buffer (1MB)
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The permission bits of added files, unless provided (rw-r--r--)
+     */
+    public static final int DEFAULT_MODE = 0644;
+
+    /**
+     * A layout ordering entries by name, which keeps the files of a directory together
+     */
+    public static final Comparator<String> BY_NAME = new Comparator<String>()
+    {
+        @Override
+        public int compare(String a, String b)
+        {
+            return a.compareTo(b);
+        }
+    };
+
+    private final File tarFile;
+    private final TarIndex.Option[] options;
+    private final Comparator<? super String> layout;
+    private final Sink archive;
+    private final Sink staging;
+    private final File stagingFile;
+    private final boolean checksums;
+    private final List<TarHeader> headers = new ArrayList<TarHeader>();
+    private final List<Staged> staged = new ArrayList<Staged>();
+    private boolean finished = false;
+
+    /**
+     * Creates a writer writing entries in the order they are added
+     * @param tarFile the file to write the tar archive to (it is created, or truncated if it exists)
+     * @param options options for how the index is built
+     * @throws IOException if the file cannot be opened for writing
+     */
+    public TarArchiveWriter(File tarFile, TarIndex.Option... options) throws IOException
+    {
+        this(tarFile, null, options);
+    }
+
+    /**
+     * @param tarFile the file to write the tar archive to (it is created, or truncated if it exists)
+     * @param layout the order to write entries in, by name (entries comparing equal are written in the order they are
+     *            added), or null to write entries in the order they are added
+     * @param options options for how the index is built
+     * @throws IOException if the file cannot be opened for writing
+     */
+    public TarArchiveWriter(File tarFile, Comparator<? super String> layout, TarIndex.Option... options) throws IOException
+    {
+        this.tarFile = tarFile;
+        this.options = options.clone();
+        this.checksums = TarIndex.toSet(options).contains(TarIndex.Option.CHECKSUMS);
+        this.layout = layout;
+        this.archive = new Sink(tarFile);
+
+        if(layout == null)
+        {
+            this.stagingFile = null;
+            this.staging = null;
+            return;
+        }
+
+        try
+        {
+            this.stagingFile = File.createTempFile(tarFile.getName(), ".staging", tarFile.getAbsoluteFile().getParentFile());
+            this.staging = new Sink(this.stagingFile);
+        } catch (IOException e)
+        {
+            this.archive.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param accessCounts how many times entries are read, by name
+     * @return a layout putting the most frequently read entries first, with the entries that aren't counted last and
+     *         entries with equal counts ordered by name
+     */
+    public static Comparator<String> byAccessCount(final Map<String, ? extends Number> accessCounts)
+    {
+        return new Comparator<String>()
+        {
+            @Override
+            public int compare(String a, String b)
+            {
+                Number countA = accessCounts.get(a);
+                Number countB = accessCounts.get(b);
+
+                if(countA != null && countB != null)
+                {
+                    int cmp = Double.compare(countB.doubleValue(), countA.doubleValue());
+
+                    if(cmp != 0) return cmp;
+                }
+                else if(countA != null || countB != null)
+                {
+                    return countA != null ? -1 : 1;
+                }
+
+                return a.compareTo(b);
+            }
+        };
+    }
+
+    /**
+     * Adds a file to the archive, with the current time as modification time
+     * @param name the path of the file in the archive
+     * @param content the content of the file
+     * @throws IOException if writing fails
+     */
+    public void add(String name, byte[] content) throws IOException
+    {
+        add(name, ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Adds a file to the archive, with the current time as modification time
+     * @param name the path of the file in the archive
+     * @param content the content of the file, from its position to its limit (the position of the buffer isn't changed)
+     * @throws IOException if writing fails
+     */
+    public void add(String name, ByteBuffer content) throws IOException
+    {
+        Sink sink = begin();
+        long start = sink.position();
+
+        try
+        {
+            long modTime = System.currentTimeMillis() / 1000;
+            CRC32 checksum = this.checksums ? new CRC32() : null;
+
+            entry(sink, name, content.remaining(), modTime, DEFAULT_MODE);
+            sink.write(content.duplicate());
+
+            if(checksum != null) checksum.update(content.duplicate());
+
+            end(sink, name, start, content.remaining(), modTime, checksum);
+        } catch (IOException e)
+        {
+            sink.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a file to the archive, with the current time as modification time
+     * @param name the path of the file in the archive
+     * @param content the content of the file, exactly size bytes are read from it (the stream isn't closed)
+     * @param size the size of the file
+     * @throws IOException if reading the content or writing fails, or the content ends before size bytes are read
+     */
+    public void add(String name, InputStream content, long size) throws IOException
+    {
+        add(name, content, size, System.currentTimeMillis() / 1000, DEFAULT_MODE);
+    }
+
+    /**
+     * Adds a file to the archive with the provided modification time and permission bits, e.g. when copying a file
+     * from another archive
+     * @param name the path of the file in the archive
+     * @param content the content of the file, exactly size bytes are read from it (the stream isn't closed)
+     * @param size the size of the file
+     * @param modTime the last modification time of the file in seconds since the epoch
+     * @param mode the permission bits of the file, e.g. {@link #DEFAULT_MODE}
+     * @throws IOException if reading the content or writing fails, or the content ends before size bytes are read
+     */
+    public void add(String name, InputStream content, long size, long modTime, int mode) throws IOException
+    {
+        Sink sink = begin();
+        long start = sink.position();
+
+        try
+        {
+            CRC32 checksum = this.checksums ? new CRC32() : null;
+
+            entry(sink, name, size, modTime, mode);
+            sink.write(content, size, name, checksum);
+            end(sink, name, start, size, modTime, checksum);
+        } catch (IOException e)
+        {
+            sink.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an entry without content to the archive, e.g. when copying a directory or a link from another archive
+     * @param name the path of the entry in the archive
+     * @param linkFlag the type of the entry: {@link TarHeader#LF_DIR}, {@link TarHeader#LF_SYMLINK},
+     *            {@link TarHeader#LF_LINK} or {@link TarHeader#LF_FIFO}
+     * @param linkName the target of a link, or an empty string for a directory or a FIFO
+     * @param modTime the last modification time of the entry in seconds since the epoch
+     * @param mode the permission bits of the entry, e.g. <code>0755</code>
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if entries of the type have content, or a link has no target or a target
+     *             longer than {@link TarHeader#LINKNAMELEN} bytes
+     */
+    public void add(String name, byte linkFlag, String linkName, long modTime, int mode) throws IOException
+    {
+        boolean link = linkFlag == LF_SYMLINK || linkFlag == LF_LINK;
+
+        if(!link && linkFlag != LF_DIR && linkFlag != LF_FIFO)
+        {
+            throw new IllegalArgumentException("not a type without content: " + (char)linkFlag);
+        }
+
+        byte[] linkNameBytes = linkName.getBytes(UTF8);
+
+        if(link ? linkNameBytes.length == 0 || linkNameBytes.length > LINKNAMELEN : linkNameBytes.length > 0)
+        {
+            throw new IllegalArgumentException("invalid link name for " + name + ": " + linkName);
+        }
+
+        Sink sink = begin();
+        long start = sink.position();
+
+        try
+        {
+            entry(sink, name, 0, linkFlag, linkNameBytes, modTime, mode);
+            end(sink, name, start, 0, linkFlag, modTime, this.checksums ? new CRC32() : null);
+        } catch (IOException e)
+        {
+            sink.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a file to the archive, copying its content without passing it through the heap
+     * @param name the path of the file in the archive
+     * @param file the file, its modification time is kept
+     * @throws IOException if reading the file or writing fails
+     */
+    public void add(String name, File file) throws IOException
+    {
+        Sink sink = begin();
+        long start = sink.position();
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+
+        try
+        {
+            FileChannel channel = source.getChannel();
+            long size = channel.size();
+
+            long modTime = file.lastModified() / 1000;
+
+            //the content doesn't pass through the heap, its checksum is computed when the archive is finished
+            entry(sink, name, size, modTime, DEFAULT_MODE);
+            sink.transferFrom(channel, 0, size, name);
+            end(sink, name, start, size, modTime, null);
+        } catch (IOException e)
+        {
+            sink.truncate(start);
+            throw e;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    /**
+     * Writes the entries (in layout order, if there is a layout) and the end of archive marker, and closes the file
+     * @return the {@link TarIndex} of the written archive
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the archive is already finished
+     */
+    public TarIndex finish() throws IOException
+    {
+        if(this.finished) throw new IllegalStateException("archive already finished: " + this.tarFile);
+
+        this.finished = true;
+
+        try
+        {
+            if(this.staging != null)
+            {
+                this.staging.flush();
+
+                Collections.sort(this.staged, new Comparator<Staged>()
+                {
+                    @Override
+                    public int compare(Staged a, Staged b)
+                    {
+                        return TarArchiveWriter.this.layout.compare(a.name, b.name);
+                    }
+                });
+
+                for(Staged entry : this.staged)
+                {
+                    long start = this.archive.position();
+
+                    this.archive.transferFrom(this.staging.channel, entry.offset, entry.length, entry.name);
+                    this.headers.add(TarHeader.buildView(entry.header.getNameBytes(), entry.header.getSize(), entry.header.getLinkFlag(), start + HEADER_BLOCK, entry.header.getModTime(), entry.header.getChecksum()));
+                }
+            }
+
+            long endOffset = this.archive.position();
+
+            this.archive.write(ByteBuffer.allocate(HEADER_BLOCK * 2));
+            this.archive.flush();
+            this.archive.close();
+
+            TarHeader[] sorted = this.headers.toArray(new TarHeader[this.headers.size()]);
+            Arrays.sort(sorted);
+
+            if(this.checksums)
+            {
+                TarChecksums.compute(this.tarFile, sorted);
+            }
+
+            return new TarIndex(this.tarFile, TarIndex.lastModified(this.tarFile), TarHeaderTable.build(sorted, TarIndex.toSet(this.options)), endOffset, this.tarFile.length());
+        }
+        finally
+        {
+            this.archive.close();
+            deleteStaging();
+        }
+    }
+
+    /**
+     * Finishes the archive (see {@link #finish()}) and stores its index in a binary index file
+     * @param indexFile target file for the index, see {@link TarIndex#store(File)}
+     * @return the {@link TarIndex} of the written archive
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the archive is already finished
+     */
+    public TarIndex finish(File indexFile) throws IOException
+    {
+        TarIndex index = finish();
+        index.store(indexFile);
+
+        return index;
+    }
+
+    /**
+     * Finishes the archive, unless it is already finished
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(!this.finished)
+        {
+            finish();
+        }
+    }
+
+    /**
+     * Discards the archive: stops writing, and deletes the archive and the staging file. Since closing a writer
+     * finishes the archive, a writer that fails part way should be aborted instead, so that a partial archive is never
+     * mistaken for a complete one.
+     */
+    public void abort()
+    {
+        this.finished = true;
+
+        IOUtils.closeQuietly(this.archive);
+        deleteStaging();
+        this.tarFile.delete();
+    }
+
+    private Sink begin()
+    {
+        if(this.finished) throw new IllegalStateException("archive already finished: " + this.tarFile);
+
+        return this.staging != null ? this.staging : this.archive;
+    }
+
+    private static void entry(Sink sink, String name, long size, long modTime, int mode) throws IOException
+    {
+        entry(sink, name, size, LF_NORMAL, new byte[0], modTime, mode);
+    }
+
+    private static void entry(Sink sink, String name, long size, byte linkFlag, byte[] linkName, long modTime, int mode) throws IOException
+    {
+        byte[] nameBytes = name.getBytes(UTF8);
+
+        if(nameBytes.length == 0 || nameBytes.length > NAMELEN)
+        {
+            throw new IllegalArgumentException("name must be 1 to " + NAMELEN + " bytes: " + name);
+        }
+
+        if(size < 0) throw new IllegalArgumentException("negative size: " + size);
+        if(mode < 0 || mode > 07777) throw new IllegalArgumentException("invalid mode: " + Integer.toOctalString(mode));
+
+        sink.header(nameBytes, size, linkFlag, linkName, modTime, mode);
+    }
+
+    private void end(Sink sink, String name, long start, long size, long modTime, CRC32 checksum) throws IOException
+    {
+        end(sink, name, start, size, LF_NORMAL, modTime, checksum);
+    }
+
+    private void end(Sink sink, String name, long start, long size, byte linkFlag, long modTime, CRC32 checksum) throws IOException
+    {
+        sink.pad();
+
+        TarHeader header = TarHeader.buildView(name.getBytes(UTF8), size, linkFlag, start + HEADER_BLOCK, modTime, checksum != null ? checksum.getValue() : -1);
+
+        if(sink == this.staging)
+        {
+            this.staged.add(new Staged(name, header, start, sink.position() - start));
+        }
+        else
+        {
+            this.headers.add(header);
+        }
+    }
+
+    private void deleteStaging()
+    {
+        if(this.staging != null)
+        {
+            IOUtils.closeQuietly(this.staging);
+            this.stagingFile.delete();
+        }
+    }
+
+    /**
+     * An entry in the staging file, waiting to be written to the archive
+     */
+    private static final class Staged
+    {
+        private final String name;
+        private final TarHeader header;
+        private final long offset;
+        private final long length;
+
+        Staged(String name, TarHeader header, long offset, long length)
+        {
+            this.name = name;
+            this.header = header;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A file written through a buffer with positional writes
+     */
+    private static final class Sink implements Closeable
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long flushed = 0;
+
+        Sink(File target) throws IOException
+        {
+            this.file = new RandomAccessFile(target, WRITE_MODE);
+
+            try
+            {
+                this.file.setLength(0);
+                this.channel = this.file.getChannel();
+            } catch (IOException e)
+            {
+                IOUtils.closeQuietly(this.file);
+                throw e;
+            }
+        }
+
+        long position()
+        {
+            return this.flushed + this.buffer.position();
+        }
+
+        void header(byte[] name, long size, byte linkFlag, byte[] linkName, long modTime, int mode) throws IOException
+        {
+            if(this.buffer.remaining() < HEADER_BLOCK) flush();
+
+            TarHeader.format(this.buffer.array(), this.buffer.position(), name, size, linkFlag, linkName, modTime, mode);
+            this.buffer.position(this.buffer.position() + HEADER_BLOCK);
+        }
+
+        void write(ByteBuffer source) throws IOException
+        {
+            if(source.remaining() >= this.buffer.capacity())
+            {
+                //large content, don't copy it through the buffer
+                flush();
+
+                while(source.hasRemaining())
+                {
+                    this.flushed += this.channel.write(source, this.flushed);
+                }
+
+                return;
+            }
+
+            while(source.hasRemaining())
+            {
+                if(!this.buffer.hasRemaining()) flush();
+
+                int count = Math.min(source.remaining(), this.buffer.remaining());
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + count);
+                this.buffer.put(slice);
+                source.position(source.position() + count);
+            }
+        }
+
+        void write(InputStream source, long size, String name, CRC32 checksum) throws IOException
+        {
+            long remaining = size;
+
+            while(remaining > 0)
+            {
+                if(!this.buffer.hasRemaining()) flush();
+
+                int count = source.read(this.buffer.array(), this.buffer.position(), (int)Math.min(remaining, this.buffer.remaining()));
+
+                if(count < 0) throw new EOFException("content of " + name + " ended after " + (size - remaining) + " of " + size + " bytes");
+                if(checksum != null) checksum.update(this.buffer.array(), this.buffer.position(), count);
+
+                this.buffer.position(this.buffer.position() + count);
+                remaining -= count;
+            }
+        }
+
+        void transferFrom(FileChannel source, long position, long count, String name) throws IOException
+        {
+            flush();
+
+            long remaining = count;
+            source.position(position);
+
+            while(remaining > 0)
+            {
+                long transferred = this.channel.transferFrom(source, this.flushed, remaining);
+
+                if(transferred <= 0) throw new EOFException("content of " + name + " ended after " + (count - remaining) + " of " + count + " bytes");
+
+                remaining -= transferred;
+                this.flushed += transferred;
+            }
+        }
+
+        void pad() throws IOException
+        {
+            int padding = (int)((DATA_BLOCK - position() % DATA_BLOCK) % DATA_BLOCK);
+
+            if(this.buffer.remaining() < padding) flush();
+
+            for(int i = 0; i < padding; i++)
+            {
+                this.buffer.put((byte)0);
+            }
+        }
+
+        void flush() throws IOException
+        {
+            this.buffer.flip();
+
+            while(this.buffer.hasRemaining())
+            {
+                this.flushed += this.channel.write(this.buffer, this.flushed);
+            }
+
+            this.buffer.clear();
+        }
+
+        /**
+         * Discards everything written from the provided position, e.g. a partially written entry
+         */
+        void truncate(long position) throws IOException
+        {
+            if(position >= this.flushed)
+            {
+                this.buffer.position((int)(position - this.flushed));
+            }
+            else
+            {
+                this.buffer.clear();
+                this.channel.truncate(position);
+                this.flushed = position;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static se.hitta.tar.TarHeader.*;
+
+/**
+ * Reads tar blocks through a large reusable buffer using positional reads on a {@link FileChannel}. Headers are
+ * parsed in place in the buffer, and the buffer is only refilled when a requested block isn't already in it.<br>
+ * The reader isn't thread safe, but any number of readers may share one channel.
+ */
+final class TarBlockReader
+{
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long bufferOffset = 0;
+
+    /**
+     * @param channel the channel of the tar archive
+     * @param bufferSize the size of the read buffer
+     */
+    TarBlockReader(FileChannel channel, int bufferSize)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Makes sure the buffer holds the header block at the provided offset, refilling it if not
+     * @param offset the offset of the header block in the tar archive
+     * @return the offset of the block in {@link #array()}, or -1 if the archive ends before the end of the block
+     * @throws IOException if reading fails
+     */
+    int block(long offset) throws IOException
+    {
+        if(offset < this.bufferOffset || offset + HEADER_BLOCK > this.bufferOffset + this.buffer.limit())
+        {
+            this.buffer.clear();
+            this.bufferOffset = offset;
+
+            while(this.buffer.hasRemaining())
+            {
+                if(this.channel.read(this.buffer, this.bufferOffset + this.buffer.position()) < 0) break;
+            }
+
+            this.buffer.flip();
+
+            if(this.buffer.limit() < HEADER_BLOCK) return -1;
+        }
+
+        return (int)(offset - this.bufferOffset);
+    }
+
+    /**
+     * @return the buffer array, see {@link #block(long)}
+     */
+    byte[] array()
+    {
+        return this.buffer.array();
+    }
+
+    /**
+     * @param block a buffer holding a header block
+     * @param offset the offset of the block in the buffer
+     * @return true if all bytes of the block are zero (i.e. the end of archive marker)
+     */
+    static boolean isZeroBlock(byte[] block, int offset)
+    {
+        for(int i = offset, end = offset + HEADER_BLOCK; i < end; i++)
+        {
+            if(block[i] != 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param header a header
+     * @return the offset of the next header, relative to the offset of the header block of the provided header
+     */
+    static long next(TarHeader header)
+    {
+        long size = header.getSize();
+
+        //adjust file offset for block padding
+        if(size % DATA_BLOCK > 0)
+        {
+            size += DATA_BLOCK - (size % DATA_BLOCK);
+        }
+
+        return HEADER_BLOCK + size;
+    }
+}
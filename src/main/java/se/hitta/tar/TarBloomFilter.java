@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A Bloom filter over the names in a {@link TarIndex}, for ruling out archives that don't hold a file without
+ * looking in (or even loading) their indexes. A name that is in the index is always reported as possibly contained,
+ * a name that isn't is reported as possibly contained with a small probability (about 1% at the default
+ * {@link #DEFAULT_BITS_PER_ENTRY}).<br>
+ * The filter is built from the name hashes the index already uses (see {@link TarIndex.Option#HASH_LOOKUP}), so a key
+ * hashed once can be tested against the filters of any number of archives, see {@link TarArchiveSet}. Each probe
+ * derives its bit from the hash by double hashing, the way LevelDB's filters do.<br>
+ * The filter remembers the length and modification time of the archive it was built for, see
+ * {@link #isCurrent(File)}. It doesn't follow changes of the archive, build a new filter instead.
+ */
+public class TarBloomFilter
+{
+    private static final int MAGIC = 'T' | 'B' << 8 | 'L' << 16 | 'M' << 24;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int MAX_HASH_COUNT = 30;
+
+    /**
+     * The default number of bits per indexed name, giving a false positive rate of about 1%
+     */
+    public static final int DEFAULT_BITS_PER_ENTRY = 10;
+
+    /**
+     * The suffix of filter files, which are stored next to their index files
+     */
+    public static final String FILTER_SUFFIX = ".bloom";
+
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+    private final int bitsPerEntry;
+    private final long archiveLength;
+    private final long lastModified;
+
+    private TarBloomFilter(long[] words, int hashCount, int bitsPerEntry, long archiveLength, long lastModified)
+    {
+        this.words = words;
+        this.bitCount = words.length * 64L;
+        this.hashCount = hashCount;
+        this.bitsPerEntry = bitsPerEntry;
+        this.archiveLength = archiveLength;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param index the index to build a filter over
+     * @return a filter over the names in the index, using {@link #DEFAULT_BITS_PER_ENTRY}
+     */
+    public static TarBloomFilter build(TarIndex index)
+    {
+        return build(index, DEFAULT_BITS_PER_ENTRY);
+    }
+
+    /**
+     * @param index the index to build a filter over
+     * @param bitsPerEntry the number of bits per indexed name, more bits make false positives rarer
+     * @return a filter over the names in the index
+     */
+    public static TarBloomFilter build(TarIndex index, int bitsPerEntry)
+    {
+        if(bitsPerEntry < 1) throw new IllegalArgumentException("bits per entry must be positive: " + bitsPerEntry);
+
+        TarHeaderTable headers = index.getHeaders();
+        long bits = Math.max(64, Math.min((long)headers.size() * bitsPerEntry, Integer.MAX_VALUE + 1L));
+        int hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int)Math.round(bitsPerEntry * Math.log(2))));
+
+        TarBloomFilter filter = new TarBloomFilter(new long[(int)((bits + 63) >>> 6)], hashCount, bitsPerEntry, index.getArchiveLength(), index.getLastModified().getTime());
+
+        for(int row = 0; row < headers.size(); row++)
+        {
+            filter.add(headers.hash(row));
+        }
+
+        return filter;
+    }
+
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return false if the file is certainly not in the index, true if it might be
+     */
+    public boolean mightContain(CharSequence key)
+    {
+        return mightContain(TarHeaderTable.hash(key));
+    }
+
+    /**
+     * @param hash the hash of a name, see {@link TarHeaderTable#hash(CharSequence)}
+     * @return false if the name is certainly not in the index, true if it might be
+     */
+    boolean mightContain(int hash)
+    {
+        int delta = Integer.rotateRight(hash, 17);
+
+        for(int i = 0; i < this.hashCount; i++)
+        {
+            long bit = bit(hash);
+
+            if((this.words[(int)(bit >>> 6)] & 1L << bit) == 0) return false;
+
+            hash += delta;
+        }
+
+        return true;
+    }
+
+    private void add(int hash)
+    {
+        int delta = Integer.rotateRight(hash, 17);
+
+        for(int i = 0; i < this.hashCount; i++)
+        {
+            long bit = bit(hash);
+            this.words[(int)(bit >>> 6)] |= 1L << bit;
+
+            hash += delta;
+        }
+    }
+
+    /*
+     * Maps a hash onto the bits by multiplying and shifting instead of dividing, so the bit count needn't be a power of two
+     */
+    private long bit(int hash)
+    {
+        return (hash & 0xffffffffL) * this.bitCount >>> 32;
+    }
+
+    /**
+     * @param tarFile the tar archive the filter was built for
+     * @return true if the archive has the same length and modification time as when the filter was built
+     */
+    public boolean isCurrent(File tarFile)
+    {
+        return tarFile.length() == this.archiveLength && TarIndex.lastModified(tarFile).getTime() == this.lastModified;
+    }
+
+    /**
+     * @return the number of bits probed per lookup
+     */
+    public int getHashCount()
+    {
+        return this.hashCount;
+    }
+
+    /**
+     * @return the number of bits per indexed name the filter was built with
+     */
+    public int getBitsPerEntry()
+    {
+        return this.bitsPerEntry;
+    }
+
+    /**
+     * @return the number of bytes used by the filter
+     */
+    public long getMemoryUsage()
+    {
+        return this.words.length * 8L;
+    }
+
+    /**
+     * Stores the filter in a file, replacing it atomically if it exists
+     * @param file the file to store the filter in, usually the index file name followed by {@link #FILTER_SUFFIX}
+     * @throws IOException if the file cannot be written
+     */
+    public void store(File file) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + this.words.length * 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putInt(this.words.length);
+        data.putInt(this.hashCount);
+        data.putLong(this.archiveLength);
+        data.putLong(this.lastModified);
+        data.putInt(this.bitsPerEntry);
+        data.putInt(0);
+
+        for(long word : this.words)
+        {
+            data.putLong(word);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.position());
+        data.putInt((int)checksum.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try
+        {
+            out.write(data.array());
+            out.getFD().sync();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+
+        if(!temp.renameTo(file))
+        {
+            file.delete();
+
+            if(!temp.renameTo(file))
+            {
+                temp.delete();
+                throw new IOException("failed to rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @param file a file written by {@link #store(File)}
+     * @return the filter stored in the file
+     * @throws IOException if the file cannot be read, or isn't a valid filter file
+     */
+    public static TarBloomFilter load(File file) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(FileUtils.readFileToByteArray(file)).order(ByteOrder.LITTLE_ENDIAN);
+
+        if(data.capacity() < HEADER_SIZE + 4 || data.getInt(0) != MAGIC) throw new IOException("not a tar bloom filter file: " + file);
+        if(data.getInt(4) != VERSION) throw new IOException("unsupported tar bloom filter file version " + data.getInt(4) + ": " + file);
+
+        int count = data.getInt(8);
+        int hashCount = data.getInt(12);
+        int bitsPerEntry = data.getInt(32);
+
+        if(count <= 0 || hashCount <= 0 || hashCount > MAX_HASH_COUNT || bitsPerEntry <= 0 || data.capacity() != HEADER_SIZE + count * 8L + 4) throw new IOException("corrupt tar bloom filter file: " + file);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.capacity() - 4);
+
+        if((int)checksum.getValue() != data.getInt(data.capacity() - 4)) throw new IOException("corrupt tar bloom filter file: " + file);
+
+        long[] words = new long[count];
+        data.position(HEADER_SIZE);
+        data.asLongBuffer().get(words);
+
+        return new TarBloomFilter(words, hashCount, bitsPerEntry, data.getLong(16), data.getLong(24));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Computes the checksums of the content of archived files, see {@link TarIndex.Option#CHECKSUMS}.<br>
+ * The files are read in the order they are stored in the archive, in tasks of about {@link #TASK_SIZE} bytes each,
+ * using positional reads on a single shared channel. The tasks run in parallel on a pool of the caller's (see
+ * {@link ParallelTarIndexer}), or one after the other on the calling thread, so that indexing never blocks the
+ * threads of a shared pool on reading a whole archive.
+ */
+final class TarChecksums
+{
+    private static final String READ_MODE = "r";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The least number of bytes read by each task (64MB)
+     */
+    static final long TASK_SIZE = 64L << 20;
+
+    private TarChecksums()
+    {
+    }
+
+    /**
+     * Computes the checksums of the headers that don't have one, on the calling thread
+     * @param tarFile the tar archive holding the files
+     * @param headers the headers of the files
+     * @throws IOException if the archive cannot be read
+     */
+    static void compute(File tarFile, TarHeader[] headers) throws IOException
+    {
+        compute(tarFile, headers, null);
+    }
+
+    /**
+     * Computes the checksums of the headers that don't have one
+     * @param tarFile the tar archive holding the files
+     * @param headers the headers of the files
+     * @param pool the pool to read the files on, or null to read them on the calling thread
+     * @throws IOException if the archive cannot be read
+     */
+    static void compute(File tarFile, TarHeader[] headers, ForkJoinPool pool) throws IOException
+    {
+        List<TarHeader> missing = new ArrayList<TarHeader>();
+
+        for(TarHeader header : headers)
+        {
+            if(header.getChecksum() < 0) missing.add(header);
+        }
+
+        if(missing.isEmpty()) return;
+
+        Collections.sort(missing, new Comparator<TarHeader>()
+        {
+            @Override
+            public int compare(TarHeader a, TarHeader b)
+            {
+                return Long.compare(a.getTarFileOffset(), b.getTarFileOffset());
+            }
+        });
+
+        RandomAccessFile file = new RandomAccessFile(tarFile, READ_MODE);
+
+        try
+        {
+            FileChannel channel = file.getChannel();
+            List<Task> tasks = new ArrayList<Task>();
+            int start = 0;
+            long bytes = 0;
+
+            for(int i = 0; i < missing.size(); i++)
+            {
+                bytes += missing.get(i).getSize();
+
+                if(bytes >= TASK_SIZE || i == missing.size() - 1)
+                {
+                    tasks.add(new Task(channel, missing.subList(start, i + 1)));
+                    start = i + 1;
+                    bytes = 0;
+                }
+            }
+
+            if(pool == null)
+            {
+                for(Task task : tasks)
+                {
+                    task.call();
+                }
+
+                return;
+            }
+
+            for(Future<Void> future : pool.invokeAll(tasks))
+            {
+                future.get();
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while computing checksums of " + tarFile);
+        } catch (ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+
+            throw new IOException("failed to compute checksums of " + tarFile, e.getCause());
+        }
+        finally
+        {
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    private static final class Task implements Callable<Void>
+    {
+        private final FileChannel channel;
+        private final List<TarHeader> headers;
+
+        private Task(FileChannel channel, List<TarHeader> headers)
+        {
+            this.channel = channel;
+            this.headers = headers;
+        }
+
+        @Override
+        public Void call() throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+
+            for(TarHeader header : this.headers)
+            {
+                long position = header.getTarFileOffset();
+                long end = position + header.getSize();
+
+                checksum.reset();
+
+                while(position < end)
+                {
+                    buffer.clear();
+                    buffer.limit((int)Math.min(buffer.capacity(), end - position));
+
+                    int count = this.channel.read(buffer, position);
+
+                    if(count < 0) throw new EOFException("archive ended within " + header.getName());
+
+                    checksum.update(buffer.array(), 0, count);
+                    position += count;
+                }
+
+                header.setChecksum(checksum.getValue());
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+
+/**
+ * A cache of the content of files in tar archives, bounded by the total number of cached bytes.<br>
+ * Admission and eviction follow W-TinyLFU: new entries are put in a small LRU window (1% of the capacity), and an
+ * entry leaving the window is only admitted to the main LRU area if it has been asked for more often (recently) than
+ * the entry it would evict from there. Frequencies are estimated by a {@link FrequencySketch}. This keeps one-off
+ * accesses, such as a scan over an archive, from flushing the popular files out of the cache.<br>
+ * The content is kept in heap buffers, or in direct buffers outside of the garbage collected heap. Files larger than
+ * the main area are never cached.<br>
+ * All methods are thread safe. Files are read from their archives without holding any lock, so two threads missing
+ * the same file at the same time may both read it.
+ */
+public class TarEntryCache
+{
+    private static final int WINDOW_PERCENT = 1;
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+
+    private final boolean offHeap;
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<Key, ByteBuffer> window = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+    private final LinkedHashMap<Key, ByteBuffer> main = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+    private long windowSize = 0;
+    private long mainSize = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long rejectionCount = 0;
+
+    /**
+     * @param capacity the maximum number of cached bytes
+     * @param offHeap true if the content should be kept in direct buffers
+     */
+    public TarEntryCache(long capacity, boolean offHeap)
+    {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.offHeap = offHeap;
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.mainCapacity = capacity - this.windowCapacity;
+        this.sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE, capacity / AVERAGE_ENTRY_SIZE));
+    }
+
+    /**
+     * @param archive the archive holding the file
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a read-only buffer with the content of the file will be present in the response, if not it will be absent
+     * @throws IOException if the file isn't cached and cannot be read from the archive
+     */
+    public Optional<ByteBuffer> get(TarArchive archive, String key) throws IOException
+    {
+        Optional<TarHeader> header = archive.get(key);
+
+        return header.isPresent() ? Optional.of(get(archive, header.get())) : Optional.<ByteBuffer>absent();
+    }
+
+    /**
+     * @param archive the archive holding the file
+     * @param tarHeader the {@link TarHeader} of the file
+     * @return a read-only buffer with the content of the file, from the cache or read from the archive
+     * @throws IOException if the file isn't cached and cannot be read from the archive
+     * @throws IllegalArgumentException if the file is too large to fit in a {@link ByteBuffer}
+     */
+    public ByteBuffer get(TarArchive archive, TarHeader tarHeader) throws IOException
+    {
+        Key key = new Key(archive.getIndex(), tarHeader);
+        ByteBuffer content = lookup(key);
+
+        if(content == null)
+        {
+            content = read(archive, tarHeader);
+
+            if(tarHeader.getSize() <= this.mainCapacity)
+            {
+                put(key, content);
+            }
+        }
+
+        return content.duplicate();
+    }
+
+    /**
+     * @param archive the archive holding the file
+     * @param tarHeader the {@link TarHeader} of the file
+     * @return an input stream for the file, from the cache or from the archive (files too large to be cached are
+     *         streamed from the archive without being read into memory)
+     * @throws IOException if the file isn't cached and cannot be read from the archive
+     */
+    public InputStream newInputStream(TarArchive archive, TarHeader tarHeader) throws IOException
+    {
+        if(tarHeader.getSize() > this.mainCapacity)
+        {
+            synchronized(this)
+            {
+                this.missCount++;
+            }
+
+            return archive.newInputStream(tarHeader);
+        }
+
+        return new ByteBufferInputStream(get(archive, tarHeader));
+    }
+
+    /**
+     * Removes all cached files of an archive, e.g. when it has been replaced
+     * @param tarFile the tar archive
+     */
+    public synchronized void invalidate(File tarFile)
+    {
+        this.windowSize -= invalidate(this.window, tarFile);
+        this.mainSize -= invalidate(this.main, tarFile);
+    }
+
+    /**
+     * @return the number of cached bytes
+     */
+    public synchronized long getSize()
+    {
+        return this.windowSize + this.mainSize;
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public synchronized int getCount()
+    {
+        return this.window.size() + this.main.size();
+    }
+
+    /**
+     * @return the number of times a file was found in the cache
+     */
+    public synchronized long getHitCount()
+    {
+        return this.hitCount;
+    }
+
+    /**
+     * @return the number of times a file had to be read from its archive
+     */
+    public synchronized long getMissCount()
+    {
+        return this.missCount;
+    }
+
+    /**
+     * @return the number of cached files evicted to make room for others
+     */
+    public synchronized long getEvictionCount()
+    {
+        return this.evictionCount;
+    }
+
+    /**
+     * @return the number of files not admitted to the cache, since they were less popular than the files they would evict
+     */
+    public synchronized long getRejectionCount()
+    {
+        return this.rejectionCount;
+    }
+
+    private synchronized ByteBuffer lookup(Key key)
+    {
+        this.sketch.increment(key.hashCode());
+
+        ByteBuffer content = this.window.get(key);
+
+        if(content == null)
+        {
+            content = this.main.get(key);
+        }
+
+        if(content == null)
+        {
+            this.missCount++;
+        }
+        else
+        {
+            this.hitCount++;
+        }
+
+        return content;
+    }
+
+    private synchronized void put(Key key, ByteBuffer content)
+    {
+        if(this.window.containsKey(key) || this.main.containsKey(key)) return;
+
+        this.window.put(key, content);
+        this.windowSize += content.capacity();
+
+        Iterator<Map.Entry<Key, ByteBuffer>> candidates = this.window.entrySet().iterator();
+
+        while(this.windowSize > this.windowCapacity)
+        {
+            Map.Entry<Key, ByteBuffer> candidate = candidates.next();
+            candidates.remove();
+            this.windowSize -= candidate.getValue().capacity();
+
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    private void admit(Key key, ByteBuffer content)
+    {
+        long size = content.capacity();
+        Iterator<Map.Entry<Key, ByteBuffer>> victims = this.main.entrySet().iterator();
+        boolean first = true;
+
+        while(this.mainSize + size > this.mainCapacity)
+        {
+            Map.Entry<Key, ByteBuffer> victim = victims.next();
+
+            if(first && this.sketch.frequency(key.hashCode()) <= this.sketch.frequency(victim.getKey().hashCode()))
+            {
+                this.rejectionCount++;
+                return;
+            }
+
+            first = false;
+            victims.remove();
+            this.mainSize -= victim.getValue().capacity();
+            this.evictionCount++;
+        }
+
+        this.main.put(key, content);
+        this.mainSize += size;
+    }
+
+    private static long invalidate(Map<Key, ByteBuffer> entries, File tarFile)
+    {
+        long removed = 0;
+
+        for(Iterator<Map.Entry<Key, ByteBuffer>> i = entries.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<Key, ByteBuffer> entry = i.next();
+
+            if(entry.getKey().tarFile.equals(tarFile))
+            {
+                removed += entry.getValue().capacity();
+                i.remove();
+            }
+        }
+
+        return removed;
+    }
+
+    private ByteBuffer read(TarArchive archive, TarHeader tarHeader) throws IOException
+    {
+        if(tarHeader.getSize() > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("file too large to cache: " + tarHeader.getName() + " (" + tarHeader.getSize() + " bytes)");
+        }
+
+        ByteBuffer content = this.offHeap ? ByteBuffer.allocateDirect((int)tarHeader.getSize()) : ByteBuffer.allocate((int)tarHeader.getSize());
+        TarEntryChannel channel = archive.newChannel(tarHeader);
+
+        try
+        {
+            while(content.hasRemaining())
+            {
+                if(channel.read(content) < 0) throw new IOException("unexpected end of archive reading " + tarHeader.getName());
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        content.flip();
+
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Identifies the content of a file by the version of its archive as well as by its name, so that a refreshed or
+     * reloaded archive never gets the content of a file it has replaced
+     */
+    private static final class Key
+    {
+        private final File tarFile;
+        private final long lastModified;
+        private final long archiveLength;
+        private final String name;
+        private final long offset;
+        private final long size;
+        private final int hash;
+
+        private Key(TarIndex index, TarHeader tarHeader)
+        {
+            this.tarFile = index.getTarFile();
+            this.lastModified = index.getLastModified().getTime();
+            this.archiveLength = index.getArchiveLength();
+            this.name = tarHeader.getName();
+            this.offset = tarHeader.getTarFileOffset();
+            this.size = tarHeader.getSize();
+            this.hash = 31 * (31 * this.tarFile.hashCode() + this.name.hashCode()) + Long.hashCode(this.offset ^ this.lastModified);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(!(obj instanceof Key)) return false;
+
+            Key other = (Key)obj;
+
+            return this.hash == other.hash && this.offset == other.offset && this.size == other.size && this.lastModified == other.lastModified && this.archiveLength == other.archiveLength && this.name.equals(other.name) && this.tarFile.equals(other.tarFile);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only channel for the archived file described by the provided {@link TarHeader}.<br>
+ * Like {@link TarEntryInputStream}, the channel only does positional reads on the underlying {@link FileChannel}.
+ * Positions are relative to the start of the file, and the channel can be positioned anywhere in the file in constant
+ * time, which makes it suitable for serving ranges of large files.
+ */
+public class TarEntryChannel implements SeekableByteChannel
+{
+    private final TarHeader tarHeader;
+    private final FileChannel channel;
+    private final Closeable owner;
+    private final long start;
+    private final long size;
+    private final TarMetrics.Handle metrics;
+    private long position = 0;
+    private long bytesRead = 0;
+    private boolean closed = false;
+
+    /**
+     * @param tarHeader The {@link TarHeader} for the file to create the channel for
+     * @param tarArchive The tar archive containing the file
+     * @param channel A channel for the tar archive containing the file, only used for positional reads
+     * @param owner What to close when this channel is closed (the channel is left open if this is not the channel itself)
+     */
+    TarEntryChannel(TarHeader tarHeader, File tarArchive, FileChannel channel, Closeable owner)
+    {
+        this.tarHeader = tarHeader;
+        this.channel = channel;
+        this.owner = owner;
+        this.start = tarHeader.getTarFileOffset();
+        this.size = tarHeader.getSize();
+        this.metrics = TarMetrics.opened(this, tarArchive, tarHeader);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if(this.closed) throw new ClosedChannelException();
+        if(this.position >= this.size) return -1;
+
+        long available = this.size - this.position;
+        int count;
+
+        if(dst.remaining() > available)
+        {
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int)available);
+
+            try
+            {
+                count = this.channel.read(dst, this.start + this.position);
+            }
+            finally
+            {
+                dst.limit(limit);
+            }
+        }
+        else
+        {
+            count = this.channel.read(dst, this.start + this.position);
+        }
+
+        if(count > 0)
+        {
+            this.position += count;
+            this.bytesRead += count;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the position within the file
+     */
+    @Override
+    public long position() throws IOException
+    {
+        if(this.closed) throw new ClosedChannelException();
+
+        return this.position;
+    }
+
+    /**
+     * @param newPosition the position within the file, a position at or past the end of the file is kept (and reported
+     *            by {@link #position()}), and makes reads return -1
+     */
+    @Override
+    public TarEntryChannel position(long newPosition) throws IOException
+    {
+        if(this.closed) throw new ClosedChannelException();
+        if(newPosition < 0) throw new IllegalArgumentException("negative position: " + newPosition);
+
+        this.position = newPosition;
+
+        return this;
+    }
+
+    /**
+     * @return the size of the file
+     */
+    @Override
+    public long size() throws IOException
+    {
+        if(this.closed) throw new ClosedChannelException();
+
+        return this.size;
+    }
+
+    /**
+     * @throws NonWritableChannelException always, the channel is read-only
+     */
+    @Override
+    public int write(ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * @throws NonWritableChannelException always, the channel is read-only
+     */
+    @Override
+    public TarEntryChannel truncate(long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !this.closed;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(!this.closed)
+        {
+            this.closed = true;
+
+            if(this.metrics != null) this.metrics.closed(this.bytesRead);
+
+            this.owner.close();
+        }
+    }
+
+    /**
+     * @return the {@link TarHeader} of the file read by this channel
+     */
+    public TarHeader getTarHeader()
+    {
+        return this.tarHeader;
+    }
+}
@@ -16,13 +16,18 @@
    
 package se.hitta.tar;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
- * An input stream for the archived file described by the provided {@link TarHeader}
+ * An input stream for the archived file described by the provided {@link TarHeader}<br>
+ * All reads are positional reads on a {@link FileChannel}, so streams sharing a channel (see {@link TarArchive}) can be
+ * read concurrently without interfering with each other.
  *
  */
 public class TarEntryInputStream extends InputStream
@@ -30,8 +35,13 @@ public class TarEntryInputStream extends InputStream
     private static final String READ_MODE = "r";
     
     private final TarHeader tarHeader;
-    private final RandomAccessFile tarArchive;
+    private final FileChannel channel;
+    private final Closeable owner;
     private final long eof;
+    private final byte[] single = new byte[1];
+    private final TarMetrics.Handle metrics;
+    private long position;
+    private long bytesRead = 0;
     private boolean closed = false;
     
     /**
@@ -40,12 +50,29 @@ public class TarEntryInputStream extends InputStream
      * @throws IOException If the tar archive cannot be opened for reading
      */
     public TarEntryInputStream(TarHeader tarHeader, File tarArchive) throws IOException
+    {
+        this(tarHeader, tarArchive, new RandomAccessFile(tarArchive, READ_MODE));
+    }
+    
+    private TarEntryInputStream(TarHeader tarHeader, File tarArchive, RandomAccessFile file)
+    {
+        this(tarHeader, tarArchive, file.getChannel(), file);
+    }
+    
+    /**
+     * @param tarHeader The {@link TarHeader} for the file to create the input stream for
+     * @param tarArchive The tar archive containing the file
+     * @param channel A channel for the tar archive containing the file, only used for positional reads
+     * @param owner What to close when this stream is closed (the channel is left open if this is not the channel itself)
+     */
+    TarEntryInputStream(TarHeader tarHeader, File tarArchive, FileChannel channel, Closeable owner)
     {
         this.tarHeader = tarHeader;
-        this.tarArchive = new RandomAccessFile(tarArchive, READ_MODE);
-        this.eof = tarHeader.getTarFileOffset() + tarHeader.getSize();
-        
-        this.tarArchive.seek(this.tarHeader.getTarFileOffset());
+        this.channel = channel;
+        this.owner = owner;
+        this.position = tarHeader.getTarFileOffset();
+        this.eof = this.position + tarHeader.getSize();
+        this.metrics = TarMetrics.opened(this, tarArchive, tarHeader);
     }
     
     
@@ -54,7 +81,7 @@ public class TarEntryInputStream extends InputStream
     {
         if(this.closed) throw new IOException("stream closed");
         
-        long available = this.eof - this.tarArchive.getFilePointer();
+        long available = this.eof - this.position;
         
         if(available > Integer.MAX_VALUE)
         {
@@ -69,65 +96,64 @@ public class TarEntryInputStream extends InputStream
     {
         if(!this.closed)
         {
-            this.tarArchive.close();
             this.closed = true;
+            
+            if(this.metrics != null) this.metrics.closed(this.bytesRead);
+            
+            this.owner.close();
         }
     }
     
     @Override
     public int read() throws IOException
     {
-        if(this.tarArchive.getFilePointer() < this.eof)
-        {
-            return this.tarArchive.read();            
-        }
-        return -1;
+        return read(this.single, 0, 1) == 1 ? this.single[0] & 0xff : -1;
     }
 
     @Override
     public int read(byte[] b) throws IOException
     {
-        if(this.tarArchive.getFilePointer() >= this.eof) return -1;
-        
-        int available = this.available();
-        
-        if(b.length > available)
-        {
-            return this.tarArchive.read(b, 0, available);
-        }
-        
-        return this.tarArchive.read(b);
+        return read(b, 0, b.length);
     }
     
     @Override
     public int read(byte[] b, int off, int len) throws IOException
     {
-        if(this.tarArchive.getFilePointer() >= this.eof) return -1;
+        if(this.closed) throw new IOException("stream closed");
+        if(this.position >= this.eof) return -1;
+        if(len == 0) return 0;
         
-        int available = this.available();
+        int count = this.channel.read(ByteBuffer.wrap(b, off, Math.min(len, this.available())), this.position);
         
-        if(len > available)
+        if(count > 0)
         {
-            return this.tarArchive.read(b, off, available);
+            this.position += count;
+            this.bytesRead += count;
         }
         
-        return this.tarArchive.read(b, off, len);
+        return count;
     }
     
+    /**
+     * Skips bytes without reading them, in constant time regardless of how many bytes are skipped
+     */
     @Override
     public long skip(long n) throws IOException
     {
-        if(n < 0)return 0;
-        
-        int available = this.available();
+        if(this.closed) throw new IOException("stream closed");
+        if(n <= 0) return 0;
         
-        if(n > available)
-        {
-            this.tarArchive.seek(this.eof);
-            return available;
-        }
+        long skipped = Math.min(n, this.eof - this.position);
+        this.position += skipped;
         
-        this.tarArchive.seek(this.tarArchive.getFilePointer() + n);
-        return n;
+        return skipped;
+    }
+    
+    /**
+     * @return the {@link TarHeader} of the file read by this stream
+     */
+    public TarHeader getTarHeader()
+    {
+        return this.tarHeader;
     }
 }
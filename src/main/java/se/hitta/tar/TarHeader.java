@@ -83,6 +83,8 @@ import java.util.Arrays;
  * <li>the size in bytes of the file</li>
  * <li>the type of file</li>
  * <li>the offset in bytes in the tar archive</li>
+ * <li>the last modification time of the file</li>
+ * <li>the CRC32 of the content of the file, if computed when indexing</li>
  * </ul>
  * To save memory, the {@link TarHeader} will not keep a reference to the tar file itself.
  */
@@ -93,6 +95,12 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
     public static final int DATA_BLOCK = 512;
     public static final int HEADER_BLOCK = 512;
 
+    /**
+     * The modification time of a header whose modification time isn't known, see {@link #getModTime()}. Any other
+     * value, including -1 (one second before 1970), is a valid modification time.
+     */
+    public static final long UNKNOWN_MOD_TIME = Long.MIN_VALUE;
+
     /*
      * Header
      */
@@ -103,6 +111,7 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
     public static final int SIZELEN = 12;
     public static final int MODTIMELEN = 12;
     public static final int CHKSUMLEN = 8;
+    public static final int LINKNAMELEN = 100;
     public static final byte LF_OLDNORM = 0;
 
     /*
@@ -126,22 +135,42 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
     public static final int USTAR_GROUP_NAMELEN = 32;
     public static final int USTAR_DEVLEN = 8;
     public static final int USTAR_FILENAME_PREFIX = 155;
+    
+    private static final int CHKSUM_OFFSET = NAMELEN + MODELEN + UIDLEN + GIDLEN + SIZELEN + MODTIMELEN;
+    private static final int LINKNAME_OFFSET = CHKSUM_OFFSET + CHKSUMLEN + 1;
+    private static final int USTAR_MAGIC_OFFSET = 257;
 
     /**
-     * Build a fake TarHeader for use in binary search
-     * @param name the name of the file to base the compare on
-     * @return
+     * Build a {@link TarHeader} from already parsed values, e.g. when creating a view of an indexed header
+     * @param name the name of the file as an UTF-8 byte array (not copied)
+     * @param size the size in bytes of the file
+     * @param linkFlag the type of file
+     * @param fileOffset the offset of the file in the tar-archive
+     * @return the newly created {@link TarHeader}
      */
-    static TarHeader buildMatcher(String name)
+    static TarHeader buildView(byte[] name, long size, byte linkFlag, long fileOffset)
     {
-        TarHeader header = new TarHeader(0);
-        try
-        {
-            header.name = name.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return buildView(name, size, linkFlag, fileOffset, UNKNOWN_MOD_TIME, -1);
+    }
+
+    /**
+     * Build a {@link TarHeader} from already parsed values, e.g. when creating a view of an indexed header
+     * @param name the name of the file as an UTF-8 byte array (not copied)
+     * @param size the size in bytes of the file
+     * @param linkFlag the type of file
+     * @param fileOffset the offset of the file in the tar-archive
+     * @param modTime the last modification time of the file in seconds since the epoch, or {@link #UNKNOWN_MOD_TIME}
+     * @param checksum the CRC32 of the content of the file, or -1 if not known
+     * @return the newly created {@link TarHeader}
+     */
+    static TarHeader buildView(byte[] name, long size, byte linkFlag, long fileOffset, long modTime, long checksum)
+    {
+        TarHeader header = new TarHeader(fileOffset);
+        header.name = name;
+        header.size = size;
+        header.linkFlag = linkFlag;
+        header.modTime = modTime;
+        header.checksum = checksum;
         
         return header;
     }
@@ -155,27 +184,187 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
      */
     public static TarHeader build(byte[] bh, long fileOffset)
     {
-        int offset = 0;
+        return build(bh, 0, fileOffset);
+    }
 
+    /**
+     * Builder for a {@link TarHeader}, parsing the header in place in a larger buffer<br>
+     * Note - the created header wrappes a minimum of the actual header to conserve memory
+     * @param buffer a buffer holding the 512 byte tar header
+     * @param offset the offset of the tar header in the buffer
+     * @param fileOffset the offset of the tar header in the tar-archive
+     * @return the newly created {@link TarHeader}
+     */
+    public static TarHeader build(byte[] buffer, int offset, long fileOffset)
+    {
         TarHeader header = new TarHeader(fileOffset);
 
-        header.name = TarHeader.parseNameAsByteArray(bh, offset, TarHeader.NAMELEN);
+        header.name = TarHeader.parseNameAsByteArray(buffer, offset, TarHeader.NAMELEN);
         offset += TarHeader.NAMELEN;
         offset += TarHeader.MODELEN;
         offset += TarHeader.UIDLEN;
         offset += TarHeader.GIDLEN;
-        header.size = parseOctal(bh, offset, TarHeader.SIZELEN);
+        //only modification times can be negative, a corrupt negative size must not move a scan backwards
+        header.size = Math.max(0, parseOctal(buffer, offset, TarHeader.SIZELEN));
         offset += TarHeader.SIZELEN;
+        header.modTime = parseOctal(buffer, offset, TarHeader.MODTIMELEN);
         offset += TarHeader.MODTIMELEN;
         offset += TarHeader.CHKSUMLEN;
-        header.linkFlag = bh[offset++];
+        header.linkFlag = buffer[offset++];
         return header;
     }
 
+    /**
+     * @param buffer a buffer holding a 512 byte tar header
+     * @param offset the offset of the tar header in the buffer
+     * @return the permission bits of the file, which aren't kept by {@link #build(byte[], int, long)}
+     */
+    static int parseMode(byte[] buffer, int offset)
+    {
+        return (int)parseOctal(buffer, offset + NAMELEN, MODELEN);
+    }
+
+    /**
+     * @param buffer a buffer holding a 512 byte tar header
+     * @param offset the offset of the tar header in the buffer
+     * @return the target of a link as an UTF-8 byte array (empty if the file isn't a link), which isn't kept by
+     *         {@link #build(byte[], int, long)}
+     */
+    static byte[] parseLinkName(byte[] buffer, int offset)
+    {
+        return parseNameAsByteArray(buffer, offset + LINKNAME_OFFSET, LINKNAMELEN);
+    }
+
+    /**
+     * Checks if a block looks like a ustar header, i.e. if it has the ustar magic and a valid checksum. This is used
+     * to find header boundaries when scanning an archive from an arbitrary offset.
+     * @param buffer a buffer holding a 512 byte block
+     * @param offset the offset of the block in the buffer
+     * @return true if the block is a ustar header
+     */
+    static boolean isUstarHeader(byte[] buffer, int offset)
+    {
+        for(int i = 0; i < USTAR_MAGIC.length(); i++)
+        {
+            if(buffer[offset + USTAR_MAGIC_OFFSET + i] != USTAR_MAGIC.charAt(i)) return false;
+        }
+        
+        long unsigned = 0;
+        long signed = 0;
+        
+        for(int i = 0; i < HEADER_BLOCK; i++)
+        {
+            byte b = (i >= CHKSUM_OFFSET && i < CHKSUM_OFFSET + CHKSUMLEN) ? (byte)' ' : buffer[offset + i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        
+        long checksum = parseOctal(buffer, offset + CHKSUM_OFFSET, CHKSUMLEN);
+        
+        //some old implementations summed signed bytes
+        return checksum == unsigned || checksum == signed;
+    }
+    
+    /**
+     * Formats a ustar header block for a file, the counterpart of {@link #build(byte[], int, long)}
+     * @param buffer a buffer to write the 512 byte header block to
+     * @param offset the offset of the header block in the buffer
+     * @param name the name of the file as an UTF-8 byte array (at most {@link #NAMELEN} bytes)
+     * @param size the size in bytes of the file
+     * @param linkFlag the type of file
+     * @param modTime the last modification time of the file in seconds since the epoch
+     * @param mode the permission bits of the file, e.g. <code>0644</code>
+     */
+    static void format(byte[] buffer, int offset, byte[] name, long size, byte linkFlag, long modTime, int mode)
+    {
+        format(buffer, offset, name, size, linkFlag, new byte[0], modTime, mode);
+    }
+
+    /**
+     * Formats a ustar header block for a file or a link, the counterpart of {@link #build(byte[], int, long)} and
+     * {@link #parseLinkName(byte[], int)}
+     * @param buffer a buffer to write the 512 byte header block to
+     * @param offset the offset of the header block in the buffer
+     * @param name the name of the file as an UTF-8 byte array (at most {@link #NAMELEN} bytes)
+     * @param size the size in bytes of the file
+     * @param linkFlag the type of file
+     * @param linkName the target of a link as an UTF-8 byte array (at most {@link #LINKNAMELEN} bytes), empty if the
+     *            file isn't a link
+     * @param modTime the last modification time of the file in seconds since the epoch
+     * @param mode the permission bits of the file, e.g. <code>0644</code>
+     */
+    static void format(byte[] buffer, int offset, byte[] name, long size, byte linkFlag, byte[] linkName, long modTime, int mode)
+    {
+        Arrays.fill(buffer, offset, offset + HEADER_BLOCK, (byte)0);
+        
+        System.arraycopy(name, 0, buffer, offset, name.length);
+        formatOctal(mode, buffer, offset + NAMELEN, MODELEN);
+        formatOctal(0, buffer, offset + NAMELEN + MODELEN, UIDLEN);
+        formatOctal(0, buffer, offset + NAMELEN + MODELEN + UIDLEN, GIDLEN);
+        formatOctal(size, buffer, offset + NAMELEN + MODELEN + UIDLEN + GIDLEN, SIZELEN);
+        formatOctal(modTime, buffer, offset + NAMELEN + MODELEN + UIDLEN + GIDLEN + SIZELEN, MODTIMELEN);
+        buffer[offset + CHKSUM_OFFSET + CHKSUMLEN] = linkFlag;
+        System.arraycopy(linkName, 0, buffer, offset + LINKNAME_OFFSET, linkName.length);
+        
+        for(int i = 0; i < USTAR_MAGIC.length(); i++)
+        {
+            buffer[offset + USTAR_MAGIC_OFFSET + i] = (byte)USTAR_MAGIC.charAt(i);
+        }
+        
+        buffer[offset + USTAR_MAGIC_OFFSET + 6] = '0'; //version "00"
+        buffer[offset + USTAR_MAGIC_OFFSET + 7] = '0';
+        
+        Arrays.fill(buffer, offset + CHKSUM_OFFSET, offset + CHKSUM_OFFSET + CHKSUMLEN, (byte)' ');
+        
+        long checksum = 0;
+        
+        for(int i = offset, end = offset + HEADER_BLOCK; i < end; i++)
+        {
+            checksum += buffer[i] & 0xff;
+        }
+        
+        //six digits, a NUL and a space
+        formatOctal(checksum, buffer, offset + CHKSUM_OFFSET, CHKSUMLEN - 1);
+    }
+    
+    /**
+     * Formats a number as a NUL terminated, zero padded octal string. Numbers too large for the field, and negative
+     * numbers, are written in the GNU base-256 encoding, see {@link #parseOctal(byte[], int, int)}.
+     */
+    private static void formatOctal(long value, byte[] header, int offset, int length)
+    {
+        int digits = length - 1;
+        
+        if(value < 0 || value >= 1L << (3 * digits))
+        {
+            header[offset] = (byte)(value < 0 ? 0xff : 0x80);
+            
+            for(int i = offset + length - 1; i > offset; i--, value >>= 8)
+            {
+                header[i] = (byte)value;
+            }
+            
+            return;
+        }
+        
+        for(int i = offset + digits - 1; i >= offset; i--, value >>>= 3)
+        {
+            header[i] = (byte)('0' + (value & 7));
+        }
+        
+        header[offset + digits] = 0;
+    }
+    
     private byte[] name;
     private long size;
     private byte linkFlag;
     private long tarFileOffset;
+    
+    /*
+     * Not part of the serialized form, which is kept compatible with older versions (see TarIndex)
+     */
+    private transient long modTime = UNKNOWN_MOD_TIME;
+    private transient long checksum = -1;
 
     private TarHeader(long fileOffset)
     {
@@ -196,6 +385,14 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
         }
     }
 
+    /**
+     * @return the name of the file denoted by this header as an UTF-8 byte array (not a copy, do not modify)
+     */
+    byte[] getNameBytes()
+    {
+        return name;
+    }
+
     /**
      * @return the size of the file denoted by this header
      */
@@ -231,6 +428,29 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
         return tarFileOffset;
     }
 
+    /**
+     * @return the last modification time of the denoted file in seconds since the epoch, or {@link #UNKNOWN_MOD_TIME}
+     *         if not known (headers from an index built without {@link TarIndex.Option#MOD_TIMES})
+     */
+    public long getModTime()
+    {
+        return modTime;
+    }
+
+    /**
+     * @return the CRC32 of the content of the denoted file, or -1 if not known (headers from an index built without
+     *         {@link TarIndex.Option#CHECKSUMS})
+     */
+    public long getChecksum()
+    {
+        return checksum;
+    }
+
+    void setChecksum(long checksum)
+    {
+        this.checksum = checksum;
+    }
+
     /**
      * @see #getName()
      */
@@ -240,15 +460,32 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
         return this.getName();
     }
     
+    /**
+     * Headers are ordered by the unsigned lexicographic order of their UTF-8 encoded names. This is the same order
+     * as {@link String#compareTo(String)}, except for names containing characters outside of the basic multilingual
+     * plane. Comparing never decodes the names.
+     */
     @Override
     public int compareTo(TarHeader other)
     {
-        return this.getName().compareTo(other.getName());
+        int length = Math.min(this.name.length, other.name.length);
+        
+        for(int i = 0; i < length; i++)
+        {
+            int cmp = (this.name[i] & 0xff) - (other.name[i] & 0xff);
+            
+            if(cmp != 0) return cmp;
+        }
+        
+        return this.name.length - other.name.length;
     }
     
     /**
-     * Parse an octal string from a header buffer. This is used for the file
-     * permission mode value.
+     * Parse an octal string from a header buffer, in place. This is used for the file
+     * permission mode value.<br>
+     * Leading spaces and NULs are skipped, and parsing stops at the first non octal digit. Numbers too large for
+     * octal fields are supported in the GNU base-256 encoding (the high bit of the first byte set), including negative
+     * numbers (e.g. modification times before 1970), which are stored in two's complement with a first byte of 0xff.
      * 
      * @param header
      *            The header buffer from which to parse.
@@ -259,13 +496,37 @@ public class TarHeader implements Comparable<TarHeader>, Serializable
      * 
      * @return The long value of the octal string.
      */
-    private static long parseOctal(byte[] header, int offset, int length)
+    static long parseOctal(byte[] header, int offset, int length)
     {
+        int end = offset + length;
+        long value = 0;
 
-        byte[] buf = Arrays.copyOfRange(header, offset, offset + length);
-        String x = new String(buf).replaceAll("[^0-9]", "");
+        if((header[offset] & 0x80) != 0)
+        {
+            //sign extend negative numbers
+            value = header[offset] == (byte)0xff ? -1 : header[offset] & 0x3f;
+            
+            for(int i = offset + 1; i < end; i++)
+            {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            
+            return value;
+        }
+        
+        int i = offset;
+        
+        while(i < end && (header[i] == ' ' || header[i] == 0))
+        {
+            i++;
+        }
+        
+        for(; i < end && header[i] >= '0' && header[i] <= '7'; i++)
+        {
+            value = (value << 3) + (header[i] - '0');
+        }
 
-        return Long.parseLong(x, 8);
+        return value;
     }
 
     /**
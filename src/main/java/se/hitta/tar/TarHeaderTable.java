@@ -0,0 +1,963 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.Checksum;
+
+/**
+ * A columnar table of sorted {@link TarHeader}s.<br>
+ * Instead of one object (and one name array) per header, all names are packed into a single buffer with a table of
+ * offsets into it, and the sizes, offsets and link flags are kept in primitive columns. {@link TarHeader}s are only
+ * created when asked for. The columns are either heap arrays or direct (off-heap) buffers.<br>
+ * Optionally, the table also holds an open addressing hash table over the names, making a lookup of a name cost one
+ * or two memory probes instead of a binary search. Each slot of the hash table holds the row of a name together
+ * with a 32 bit fingerprint of it, so names are only compared when the fingerprints match.<br>
+ * The modification times and the checksums of the content of the files are optional columns, see
+ * {@link TarIndex.Option#MOD_TIMES} and {@link TarIndex.Option#CHECKSUMS}.
+ */
+final class TarHeaderTable
+{
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int size;
+    private final ByteBuffer names;
+    private final IntBuffer nameOffsets;
+    private final LongBuffer offsets;
+    private final LongBuffer sizes;
+    private final ByteBuffer linkFlags;
+    private final LongBuffer hashSlots;
+    private final LongBuffer modTimes;
+    private final LongBuffer checksums;
+
+    private TarHeaderTable(int size, ByteBuffer names, IntBuffer nameOffsets, LongBuffer offsets, LongBuffer sizes, ByteBuffer linkFlags, LongBuffer hashSlots, LongBuffer modTimes, LongBuffer checksums)
+    {
+        this.size = size;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.linkFlags = linkFlags;
+        this.hashSlots = hashSlots;
+        this.modTimes = modTimes;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Builds a table of headers. If a name is in more than one header, the header with the largest offset in the archive
+     * is kept, as by {@link #merge(TarHeaderTable, TarHeader[], Set)}.
+     * @param headers the headers to put in the table, in sorted order
+     * @param options the options for how the table is built
+     * @return the newly created table
+     */
+    static TarHeaderTable build(TarHeader[] headers, Set<TarIndex.Option> options)
+    {
+        return merge(allocate(0, 0, options), headers, options);
+    }
+
+    /**
+     * Merges headers into a table. If a name is in both, the header with the largest offset in the archive is kept
+     * (a file appended to an archive replaces any earlier file with the same name).
+     * @param table a table
+     * @param headers the headers to merge into the table, in sorted order
+     * @param options the options for how the table is built
+     * @return the newly created table
+     */
+    static TarHeaderTable merge(TarHeaderTable table, TarHeader[] headers, Set<TarIndex.Option> options)
+    {
+        int size = 0;
+        long namesLength = 0;
+
+        for(Merge merge = new Merge(table, headers); merge.next(); size++)
+        {
+            namesLength += merge.header != null ? merge.header.getNameBytes().length : table.nameOffsets.get(merge.row + 1) - table.nameOffsets.get(merge.row);
+        }
+
+        TarHeaderTable merged = allocate(size, namesLength, options);
+        Merge merge = new Merge(table, headers);
+
+        for(int row = 0; merge.next(); row++)
+        {
+            if(merge.header != null)
+            {
+                merged.put(row, merge.header);
+            }
+            else
+            {
+                merged.copy(row, table, merge.row);
+            }
+        }
+
+        return merged.complete(options);
+    }
+
+    /**
+     * Builds a table of rows picked from other tables
+     * @param tables the tables to pick rows from
+     * @param picks the picked rows as <code>(table &lt;&lt; 32 | row)</code>, in sorted order of their names
+     * @param count the number of picked rows
+     * @param options the options for how the table is built
+     * @return the newly created table
+     */
+    static TarHeaderTable pick(TarHeaderTable[] tables, long[] picks, int count, Set<TarIndex.Option> options)
+    {
+        long namesLength = 0;
+
+        for(int i = 0; i < count; i++)
+        {
+            TarHeaderTable table = tables[(int)(picks[i] >>> 32)];
+            int row = (int)picks[i];
+            namesLength += table.nameOffsets.get(row + 1) - table.nameOffsets.get(row);
+        }
+
+        TarHeaderTable picked = allocate(count, namesLength, options);
+
+        for(int i = 0; i < count; i++)
+        {
+            picked.copy(i, tables[(int)(picks[i] >>> 32)], (int)picks[i]);
+        }
+
+        return picked.complete(options);
+    }
+
+    /**
+     * Iterates over the merged rows of a table and sorted headers, see {@link TarHeaderTable#merge(TarHeaderTable, TarHeader[], Set)}
+     */
+    private static final class Merge
+    {
+        private final TarHeaderTable table;
+        private final TarHeader[] headers;
+        private int i = 0;
+        private int j = 0;
+
+        /**
+         * The next header, or null if the next row is a row of the table
+         */
+        private TarHeader header;
+
+        /**
+         * The next row of the table, if {@link #header} is null
+         */
+        private int row;
+
+        private Merge(TarHeaderTable table, TarHeader[] headers)
+        {
+            this.table = table;
+            this.headers = headers;
+        }
+
+        private boolean next()
+        {
+            if(this.i == this.table.size && this.j == this.headers.length) return false;
+
+            this.header = null;
+
+            if(this.j == this.headers.length)
+            {
+                this.row = this.i++;
+                return true;
+            }
+
+            //the newest of the headers with the same name
+            TarHeader newest = this.headers[this.j];
+            int end = this.j + 1;
+
+            for(; end < this.headers.length && this.headers[end].compareTo(newest) == 0; end++)
+            {
+                if(this.headers[end].getTarFileOffset() > newest.getTarFileOffset()) newest = this.headers[end];
+            }
+
+            ByteBuffer name = ByteBuffer.wrap(newest.getNameBytes());
+            int cmp = this.i == this.table.size ? 1 : this.table.compare(this.i, name);
+
+            if(cmp < 0)
+            {
+                this.row = this.i++;
+                return true;
+            }
+
+            this.j = end;
+            this.header = newest;
+
+            long offset = newest.getTarFileOffset();
+
+            for(; this.i < this.table.size && this.table.compare(this.i, name) == 0; this.i++)
+            {
+                if(this.table.offsets.get(this.i) > offset)
+                {
+                    offset = this.table.offsets.get(this.i);
+                    this.header = null;
+                    this.row = this.i;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private static TarHeaderTable allocate(int size, long namesLength, Set<TarIndex.Option> options)
+    {
+        if(namesLength > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("too many names to index: " + namesLength + " bytes");
+        }
+
+        boolean direct = options.contains(TarIndex.Option.OFF_HEAP);
+
+        ByteBuffer names = allocate((int)namesLength, direct);
+        IntBuffer nameOffsets = allocateInts(size + 1, direct);
+        LongBuffer offsets = allocateLongs(size, direct);
+        LongBuffer sizes = allocateLongs(size, direct);
+        ByteBuffer linkFlags = allocate(size, direct);
+        LongBuffer modTimes = options.contains(TarIndex.Option.MOD_TIMES) ? allocateLongs(size, direct) : null;
+        LongBuffer checksums = options.contains(TarIndex.Option.CHECKSUMS) ? allocateLongs(size, direct) : null;
+
+        return new TarHeaderTable(size, names, nameOffsets, offsets, sizes, linkFlags, null, modTimes, checksums);
+    }
+
+    /**
+     * Puts a header in a row of a table being built. Rows have to be put in order.
+     */
+    private void put(int row, TarHeader header)
+    {
+        this.nameOffsets.put(row, this.names.position());
+        this.names.put(header.getNameBytes());
+        this.offsets.put(row, header.getTarFileOffset());
+        this.sizes.put(row, header.getSize());
+        this.linkFlags.put(row, header.getLinkFlag());
+
+        if(this.modTimes != null) this.modTimes.put(row, header.getModTime());
+        if(this.checksums != null) this.checksums.put(row, header.getChecksum());
+    }
+
+    /**
+     * Copies a row of another table to a row of a table being built. Rows have to be put in order.
+     */
+    private void copy(int row, TarHeaderTable from, int fromRow)
+    {
+        ByteBuffer name = from.names.duplicate();
+        name.limit(from.nameOffsets.get(fromRow + 1)).position(from.nameOffsets.get(fromRow));
+
+        this.nameOffsets.put(row, this.names.position());
+        this.names.put(name);
+        this.offsets.put(row, from.offsets.get(fromRow));
+        this.sizes.put(row, from.sizes.get(fromRow));
+        this.linkFlags.put(row, from.linkFlags.get(fromRow));
+
+        if(this.modTimes != null) this.modTimes.put(row, from.modTimes != null ? from.modTimes.get(fromRow) : TarHeader.UNKNOWN_MOD_TIME);
+        if(this.checksums != null) this.checksums.put(row, from.checksums != null ? from.checksums.get(fromRow) : -1);
+    }
+
+    /**
+     * Completes a table being built
+     */
+    private TarHeaderTable complete(Set<TarIndex.Option> options)
+    {
+        this.nameOffsets.put(this.size, this.names.position());
+        this.names.clear();
+
+        if(options.contains(TarIndex.Option.HASH_LOOKUP))
+        {
+            return new TarHeaderTable(this.size, this.names, this.nameOffsets, this.offsets, this.sizes, this.linkFlags, buildHashSlots(options.contains(TarIndex.Option.OFF_HEAP)), this.modTimes, this.checksums);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the options this table was built with
+     */
+    Set<TarIndex.Option> options()
+    {
+        Set<TarIndex.Option> options = EnumSet.noneOf(TarIndex.Option.class);
+
+        if(this.names.isDirect()) options.add(TarIndex.Option.OFF_HEAP);
+        if(this.hashSlots != null) options.add(TarIndex.Option.HASH_LOOKUP);
+        if(this.modTimes != null) options.add(TarIndex.Option.MOD_TIMES);
+        if(this.checksums != null) options.add(TarIndex.Option.CHECKSUMS);
+
+        return options;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct)
+    {
+        return direct ? ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder()) : ByteBuffer.allocate(capacity);
+    }
+
+    private static IntBuffer allocateInts(int capacity, boolean direct)
+    {
+        return direct ? allocate(capacity * 4, true).asIntBuffer() : IntBuffer.allocate(capacity);
+    }
+
+    private static LongBuffer allocateLongs(int capacity, boolean direct)
+    {
+        return direct ? allocate(capacity * 8, true).asLongBuffer() : LongBuffer.allocate(capacity);
+    }
+
+    /*
+     * Slots are (fingerprint << 32 | row + 1), 0 marks an empty slot. The capacity is a power of two, at least twice
+     * the number of rows, and collisions are resolved by linear probing.
+     */
+    private LongBuffer buildHashSlots(boolean direct)
+    {
+        int capacity = Integer.highestOneBit(Math.max(1, this.size) * 2 - 1) << 1;
+        LongBuffer slots = allocateLongs(capacity, direct);
+        int mask = capacity - 1;
+
+        for(int row = 0; row < this.size; row++)
+        {
+            int hash = hash(row);
+            int slot = hash & mask;
+
+            while(slots.get(slot) != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            slots.put(slot, (long)hash << 32 | (row + 1));
+        }
+
+        return slots;
+    }
+
+    /**
+     * Wraps columns previously written by {@link #write(WritableByteChannel, Checksum)}, e.g. in a mapped file. The
+     * columns are used in place, nothing is copied.
+     * @param data the written columns, from the position of the buffer
+     * @param size the number of headers in the table
+     * @param namesLength the number of bytes of packed names
+     * @param hashCapacity the number of hash slots, or 0 if the table has no hash table
+     * @param modTimes true if the table has a column of modification times
+     * @param checksums true if the table has a column of checksums
+     * @return the wrapping table
+     */
+    static TarHeaderTable wrap(ByteBuffer data, int size, int namesLength, int hashCapacity, boolean modTimes, boolean checksums)
+    {
+        int position = data.position();
+
+        LongBuffer offsets = slice(data, position, size * 8).asLongBuffer();
+        position += size * 8;
+        LongBuffer sizes = slice(data, position, size * 8).asLongBuffer();
+        position += size * 8;
+        LongBuffer hashSlots = hashCapacity > 0 ? slice(data, position, hashCapacity * 8).asLongBuffer() : null;
+        position += hashCapacity * 8;
+        LongBuffer modTimeColumn = modTimes ? slice(data, position, size * 8).asLongBuffer() : null;
+        position += modTimes ? size * 8 : 0;
+        LongBuffer checksumColumn = checksums ? slice(data, position, size * 8).asLongBuffer() : null;
+        position += checksums ? size * 8 : 0;
+        IntBuffer nameOffsets = slice(data, position, (size + 1) * 4).asIntBuffer();
+        position += (size + 1) * 4;
+        ByteBuffer linkFlags = slice(data, position, size);
+        position += size;
+        ByteBuffer names = slice(data, position, namesLength);
+
+        return new TarHeaderTable(size, names, nameOffsets, offsets, sizes, linkFlags, hashSlots, modTimeColumn, checksumColumn);
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int position, int length)
+    {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(position + length).position(position);
+
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the columns of the table in little endian byte order, longs first to keep them aligned
+     * @param out the channel to write to
+     * @param checksum updated with every written byte
+     * @throws IOException if writing fails
+     * @see #wrap(ByteBuffer, int, int, int, boolean, boolean)
+     */
+    void write(WritableByteChannel out, Checksum checksum) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        write(this.offsets, buffer, out, checksum);
+        write(this.sizes, buffer, out, checksum);
+
+        if(this.hashSlots != null)
+        {
+            write(this.hashSlots, buffer, out, checksum);
+        }
+
+        if(this.modTimes != null)
+        {
+            write(this.modTimes, buffer, out, checksum);
+        }
+
+        if(this.checksums != null)
+        {
+            write(this.checksums, buffer, out, checksum);
+        }
+
+        write(this.nameOffsets, buffer, out, checksum);
+
+        write(this.linkFlags, buffer, out, checksum);
+        write(this.names, buffer, out, checksum);
+    }
+
+    private static void write(LongBuffer column, ByteBuffer buffer, WritableByteChannel out, Checksum checksum) throws IOException
+    {
+        LongBuffer values = column.duplicate();
+        values.clear();
+
+        while(values.hasRemaining())
+        {
+            buffer.clear();
+            LongBuffer view = buffer.asLongBuffer();
+            int count = Math.min(view.remaining(), values.remaining());
+
+            for(int i = 0; i < count; i++)
+            {
+                view.put(values.get());
+            }
+
+            buffer.limit(count * 8);
+            write(buffer, out, checksum);
+        }
+    }
+
+    private static void write(IntBuffer column, ByteBuffer buffer, WritableByteChannel out, Checksum checksum) throws IOException
+    {
+        IntBuffer values = column.duplicate();
+        values.clear();
+
+        while(values.hasRemaining())
+        {
+            buffer.clear();
+            IntBuffer view = buffer.asIntBuffer();
+            int count = Math.min(view.remaining(), values.remaining());
+
+            for(int i = 0; i < count; i++)
+            {
+                view.put(values.get());
+            }
+
+            buffer.limit(count * 4);
+            write(buffer, out, checksum);
+        }
+    }
+
+    private static void write(ByteBuffer column, ByteBuffer buffer, WritableByteChannel out, Checksum checksum) throws IOException
+    {
+        ByteBuffer values = column.duplicate();
+        values.clear();
+
+        while(values.hasRemaining())
+        {
+            buffer.clear();
+            int count = Math.min(buffer.remaining(), values.remaining());
+
+            for(int i = 0; i < count; i++)
+            {
+                buffer.put(values.get());
+            }
+
+            buffer.flip();
+            write(buffer, out, checksum);
+        }
+    }
+
+    private static void write(ByteBuffer buffer, WritableByteChannel out, Checksum checksum) throws IOException
+    {
+        checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+        while(buffer.hasRemaining())
+        {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * @return the number of bytes of packed names
+     */
+    int namesLength()
+    {
+        return this.nameOffsets.get(this.size);
+    }
+
+    /**
+     * @return the number of hash slots, or 0 if the table has no hash table
+     */
+    int hashCapacity()
+    {
+        return this.hashSlots == null ? 0 : this.hashSlots.capacity();
+    }
+
+    /**
+     * @return the number of bytes written by {@link #write(WritableByteChannel, Checksum)}
+     */
+    long length()
+    {
+        long columns = (this.modTimes != null ? 8 : 0) + (this.checksums != null ? 8 : 0);
+
+        return this.size * (17L + columns) + this.hashCapacity() * 8L + (this.size + 1) * 4L + this.namesLength();
+    }
+
+    /**
+     * @return the number of headers in the table
+     */
+    int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Finds a name using the hash table if there is one, or by binary search if not
+     * @param key the name to search for
+     * @return the index of the header with the provided name, or a negative number if absent
+     */
+    int find(CharSequence key)
+    {
+        if(this.hashSlots == null) return indexOf(key);
+
+        int mask = this.hashSlots.capacity() - 1;
+        int hash = hash(key);
+
+        for(int slot = hash & mask;; slot = (slot + 1) & mask)
+        {
+            long value = this.hashSlots.get(slot);
+
+            if(value == 0) return -1;
+
+            if((int)(value >>> 32) == hash)
+            {
+                int row = (int)value - 1;
+
+                if(compare(row, key) == 0) return row;
+            }
+        }
+    }
+
+    /**
+     * Finds a name using the hash table if there is one, or by binary search if not
+     * @param key the UTF-8 encoded name to search for, from its position to its limit
+     * @return the index of the header with the provided name, or a negative number if absent
+     */
+    int find(ByteBuffer key)
+    {
+        if(this.hashSlots == null) return indexOf(key);
+
+        int mask = this.hashSlots.capacity() - 1;
+        int hash = hash(key);
+
+        for(int slot = hash & mask;; slot = (slot + 1) & mask)
+        {
+            long value = this.hashSlots.get(slot);
+
+            if(value == 0) return -1;
+
+            if((int)(value >>> 32) == hash)
+            {
+                int row = (int)value - 1;
+
+                if(compare(row, key) == 0) return row;
+            }
+        }
+    }
+
+    /**
+     * @param key the name to search for
+     * @return the index of the header with the provided name, or <code>(-(insertion point) - 1)</code> if absent
+     */
+    int indexOf(CharSequence key)
+    {
+        int low = 0;
+        int high = this.size - 1;
+
+        while(low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key);
+
+            if(cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if(cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * @param key the UTF-8 encoded name to search for, from its position to its limit
+     * @return the index of the header with the provided name, or <code>(-(insertion point) - 1)</code> if absent
+     */
+    int indexOf(ByteBuffer key)
+    {
+        int low = 0;
+        int high = this.size - 1;
+
+        while(low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key);
+
+            if(cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if(cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * @param key a name
+     * @return the index of the first header with a name greater than or equal to the key (the size of the table if
+     *         there is none)
+     */
+    int lowerBound(CharSequence key)
+    {
+        int low = 0;
+        int high = this.size;
+
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if(compare(mid, key, false) < 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Names starting with a prefix are always stored next to each other, directly after the position the prefix
+     * itself would have, see {@link #lowerBound(CharSequence)}.
+     * @param prefix a prefix
+     * @return the index following the last header with a name starting with the prefix (or the index of the first
+     *         header with a greater name if there is none)
+     */
+    int prefixEnd(CharSequence prefix)
+    {
+        int low = 0;
+        int high = this.size;
+
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if(compare(mid, prefix, true) <= 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Compares the name of a header with a key, encoding the key to UTF-8 on the fly. Unpaired surrogates are
+     * encoded as '?', like {@link String#getBytes(String)} does.
+     * @param index the index of the header
+     * @param key the key to compare with
+     * @return a negative number, zero or a positive number as the name is less than, equal to or greater than the key
+     */
+    int compare(int index, CharSequence key)
+    {
+        return compare(index, key, false);
+    }
+
+    /**
+     * @param prefix true if a name starting with the key should be considered equal to it
+     */
+    private int compare(int index, CharSequence key, boolean prefix)
+    {
+        int position = this.nameOffsets.get(index);
+        int end = this.nameOffsets.get(index + 1);
+        int length = key.length();
+
+        for(int i = 0; i < length; i++)
+        {
+            long encoding = encode(key, i);
+            int encoded = (int)encoding;
+            int count = (int)(encoding >>> 32);
+
+            if(count == 4) i++; //a surrogate pair
+
+            for(int shift = (count - 1) * 8; shift >= 0; shift -= 8)
+            {
+                if(position == end) return -1;
+
+                int cmp = (this.names.get(position++) & 0xff) - (encoded >>> shift & 0xff);
+
+                if(cmp != 0) return cmp;
+            }
+        }
+
+        return position == end || prefix ? 0 : 1;
+    }
+
+    /**
+     * @param key a key
+     * @param i the index of the char in the key to encode
+     * @return the UTF-8 encoding of the char (or surrogate pair) at the index, as <code>(byte count &lt;&lt; 32 | bytes)</code>
+     */
+    private static long encode(CharSequence key, int i)
+    {
+        int c = key.charAt(i);
+
+        if(c < 0x80)
+        {
+            return 1L << 32 | c;
+        }
+        else if(c < 0x800)
+        {
+            return 2L << 32 | (0xc0 | c >> 6) << 8 | (0x80 | c & 0x3f);
+        }
+        else if(Character.isHighSurrogate((char)c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1)))
+        {
+            int cp = Character.toCodePoint((char)c, key.charAt(i + 1));
+
+            return 4L << 32 | ((0xf0 | cp >> 18) << 24 | (0x80 | cp >> 12 & 0x3f) << 16 | (0x80 | cp >> 6 & 0x3f) << 8 | (0x80 | cp & 0x3f)) & 0xffffffffL;
+        }
+        else if(Character.isSurrogate((char)c))
+        {
+            return 1L << 32 | '?';
+        }
+
+        return 3L << 32 | (0xe0 | c >> 12) << 16 | (0x80 | c >> 6 & 0x3f) << 8 | (0x80 | c & 0x3f);
+    }
+
+    /*
+     * Names are hashed using FNV-1a over their UTF-8 bytes, followed by the murmur3 finalizer to spread the bits
+     */
+    private static int mix(int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+
+    /**
+     * @param row the row of the name to hash
+     * @return the hash of the name, the same as {@link #hash(CharSequence)} of the name
+     */
+    int hash(int row)
+    {
+        int hash = FNV_OFFSET;
+
+        for(int i = this.nameOffsets.get(row), end = this.nameOffsets.get(row + 1); i < end; i++)
+        {
+            hash = (hash ^ (this.names.get(i) & 0xff)) * FNV_PRIME;
+        }
+
+        return mix(hash);
+    }
+
+    private static int hash(ByteBuffer key)
+    {
+        int hash = FNV_OFFSET;
+
+        for(int i = key.position(), end = key.limit(); i < end; i++)
+        {
+            hash = (hash ^ (key.get(i) & 0xff)) * FNV_PRIME;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * @param key a key
+     * @return the hash of the UTF-8 encoding of the key
+     */
+    static int hash(CharSequence key)
+    {
+        int hash = FNV_OFFSET;
+        int length = key.length();
+
+        for(int i = 0; i < length; i++)
+        {
+            long encoding = encode(key, i);
+            int count = (int)(encoding >>> 32);
+
+            if(count == 4) i++; //a surrogate pair
+
+            for(int shift = (count - 1) * 8; shift >= 0; shift -= 8)
+            {
+                hash = (hash ^ ((int)encoding >>> shift & 0xff)) * FNV_PRIME;
+            }
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * @param index the index of the header
+     * @param key the UTF-8 encoded key to compare with, from its position to its limit
+     * @return a negative number, zero or a positive number as the name is less than, equal to or greater than the key
+     */
+    int compare(int index, ByteBuffer key)
+    {
+        int position = this.nameOffsets.get(index);
+        int length = this.nameOffsets.get(index + 1) - position;
+        int keyPosition = key.position();
+        int keyLength = key.remaining();
+        int count = Math.min(length, keyLength);
+
+        for(int i = 0; i < count; i++)
+        {
+            int cmp = (this.names.get(position + i) & 0xff) - (key.get(keyPosition + i) & 0xff);
+
+            if(cmp != 0) return cmp;
+        }
+
+        return length - keyLength;
+    }
+
+    /**
+     * @param index the index of the header
+     * @param other another table
+     * @param otherIndex the index of the header in the other table
+     * @return a negative number, zero or a positive number as the name is less than, equal to or greater than the
+     *         name in the other table
+     */
+    int compare(int index, TarHeaderTable other, int otherIndex)
+    {
+        int position = this.nameOffsets.get(index);
+        int length = this.nameOffsets.get(index + 1) - position;
+        int otherPosition = other.nameOffsets.get(otherIndex);
+        int otherLength = other.nameOffsets.get(otherIndex + 1) - otherPosition;
+        int count = Math.min(length, otherLength);
+
+        for(int i = 0; i < count; i++)
+        {
+            int cmp = (this.names.get(position + i) & 0xff) - (other.names.get(otherPosition + i) & 0xff);
+
+            if(cmp != 0) return cmp;
+        }
+
+        return length - otherLength;
+    }
+
+    /**
+     * @param index the index of the header
+     * @param prefix a UTF-8 encoded prefix
+     * @return true if the last path element of the name (ignoring a trailing '/' of a directory) starts with the prefix
+     */
+    boolean baseNameStartsWith(int index, byte[] prefix)
+    {
+        int start = this.nameOffsets.get(index);
+        int end = this.nameOffsets.get(index + 1);
+
+        if(end > start && this.names.get(end - 1) == '/') end--;
+
+        int base = end;
+
+        while(base > start && this.names.get(base - 1) != '/') base--;
+
+        if(end - base < prefix.length) return false;
+
+        for(int i = 0; i < prefix.length; i++)
+        {
+            if(this.names.get(base + i) != prefix[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param index the index of the header
+     * @return a newly created {@link TarHeader} for the row at the provided index
+     */
+    TarHeader getHeader(int index)
+    {
+        long modTime = this.modTimes != null ? this.modTimes.get(index) : TarHeader.UNKNOWN_MOD_TIME;
+        long checksum = this.checksums != null ? this.checksums.get(index) : -1;
+
+        return TarHeader.buildView(getNameBytes(index), this.sizes.get(index), this.linkFlags.get(index), this.offsets.get(index), modTime, checksum);
+    }
+
+    /**
+     * @param index the index of the header
+     * @return the offset in the tar archive of the file of the header at the provided index
+     */
+    long getTarFileOffset(int index)
+    {
+        return this.offsets.get(index);
+    }
+
+    /**
+     * @param index the index of the header
+     * @return the name of the header at the provided index
+     */
+    String getName(int index)
+    {
+        try
+        {
+            return new String(getNameBytes(index), "UTF-8");
+        } catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] getNameBytes(int index)
+    {
+        int start = this.nameOffsets.get(index);
+        byte[] name = new byte[this.nameOffsets.get(index + 1) - start];
+
+        ByteBuffer view = this.names.duplicate();
+        view.position(start);
+        view.get(name);
+
+        return name;
+    }
+}
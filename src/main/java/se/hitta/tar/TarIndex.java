@@ -21,13 +21,20 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
@@ -37,9 +44,12 @@ import org.apache.commons.lang3.time.DateUtils;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.UnmodifiableIterator;
 
 /**
- * This class will build an index of a provided tar archive.
+ * This class will build an index of a provided tar archive.<br>
+ * The index doesn't keep a {@link TarHeader} object per indexed file. Names, sizes and offsets are packed into a few
+ * primitive columns (optionally off-heap, see {@link Option#OFF_HEAP}), and {@link TarHeader}s are created on lookup.
  */
 /**
  * @author jebl01
@@ -57,10 +67,57 @@ public class TarIndex implements Serializable
 {
     private static final long serialVersionUID = 2521850273227117136L;
 
-    private final TarHeader[] headers;
+    /*
+     * The serialized form is kept compatible with indexes serialized before the header table was introduced
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("headers", TarHeader[].class),
+        new ObjectStreamField("tarFile", File.class),
+        new ObjectStreamField("lastModified", Date.class),
+        new ObjectStreamField("endOffset", Long.TYPE),
+        new ObjectStreamField("archiveLength", Long.TYPE)
+    };
     
-    private final File tarFile;
-    private final Date lastModified;
+    /**
+     * Options for how a {@link TarIndex} is built
+     */
+    public enum Option
+    {
+        /**
+         * Keep the index columns in direct buffers, outside of the garbage collected heap
+         */
+        OFF_HEAP,
+        
+        /**
+         * Build a hash table over the indexed names, so that {@link TarIndex#get(String)} costs one or two memory
+         * probes instead of a binary search (at the cost of 16-32 extra bytes per indexed file)
+         */
+        HASH_LOOKUP,
+        
+        /**
+         * Keep the last modification time of every indexed file (see {@link TarHeader#getModTime()}), at the cost of
+         * 8 extra bytes per indexed file
+         */
+        MOD_TIMES,
+        
+        /**
+         * Compute a CRC32 of the content of every indexed file (see {@link TarHeader#getChecksum()}), at the cost of 8
+         * extra bytes per indexed file (so that a file whose checksum is unknown, e.g. a file cut short at the end of a
+         * streamed archive, keeps -1). Indexing then reads all of the archive instead of just its headers, on the
+         * indexing thread (use a {@link ParallelTarIndexer} to read it in parallel on a pool of your own).<br>
+         * Modification times and checksums are kept by {@link TarIndex#store(File)}, but not by
+         * {@link TarIndex#serialize(File)}, whose format is kept compatible with older versions.
+         */
+        CHECKSUMS
+    }
+
+    private transient TarHeaderTable headers;
+    
+    private File tarFile;
+    private Date lastModified;
+    private long endOffset;
+    private long archiveLength;
+    private transient boolean compressed;
     
     /**
      * @param tarFile the tar archive to index
@@ -68,12 +125,134 @@ public class TarIndex implements Serializable
      */
     public TarIndex(File tarFile) throws IOException
     {
+        this(tarFile, new Option[0]);
+    }
+    
+    /**
+     * @param tarFile the tar archive to index
+     * @param options options for how the index is built
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public TarIndex(File tarFile, Option... options) throws IOException
+    {
+        long start = TarMetrics.start();
+        
         this.tarFile = tarFile;
-        this.lastModified = DateUtils.truncate(new Date(tarFile.lastModified()), Calendar.SECOND); //trim milliseconds
+        this.lastModified = lastModified(tarFile);
+        this.archiveLength = tarFile.length();
         
         TarHeaderIterator tarHeaderIterator = new TarHeaderIterator(tarFile);
-        this.headers = Iterators.toArray(tarHeaderIterator, TarHeader.class);
-        Arrays.sort(this.headers);
+        TarHeader[] headers = Iterators.toArray(tarHeaderIterator, TarHeader.class);
+        Arrays.sort(headers);
+        
+        Set<Option> optionSet = toSet(options);
+        
+        if(optionSet.contains(Option.CHECKSUMS))
+        {
+            TarChecksums.compute(tarFile, headers);
+        }
+        
+        this.headers = TarHeaderTable.build(headers, optionSet);
+        this.endOffset = tarHeaderIterator.getPosition();
+        
+        TarMetrics.indexBuilt(start, this);
+    }
+    
+    TarIndex(File tarFile, Date lastModified, TarHeaderTable headers, long endOffset, long archiveLength)
+    {
+        this(tarFile, lastModified, headers, endOffset, archiveLength, false);
+    }
+    
+    TarIndex(File tarFile, Date lastModified, TarHeaderTable headers, long endOffset, long archiveLength, boolean compressed)
+    {
+        this.tarFile = tarFile;
+        this.lastModified = lastModified;
+        this.headers = headers;
+        this.endOffset = endOffset;
+        this.archiveLength = archiveLength;
+        this.compressed = compressed;
+    }
+    
+    /**
+     * Brings the index up to date with its tar archive. If files have been appended to the archive since it was
+     * indexed (e.g. using <code>tar -r</code>), only the appended part of the archive is scanned, and the appended
+     * files are merged into a new index. A file appended with the same name as an indexed file replaces it.<br>
+     * If the archive has been changed in any other way, or if the index doesn't know the end of the indexed part of
+     * the archive (indexes serialized by older versions), the archive is indexed all over again.
+     * @return this index if the archive is unchanged, or a new up to date index
+     * @throws IOException if the file cannot be opened for reading, or if this is the index of a compressed archive
+     */
+    public TarIndex refresh() throws IOException
+    {
+        if(this.compressed) throw new IOException("cannot refresh the index of a compressed archive: " + this.tarFile);
+        
+        Date lastModified = lastModified(this.tarFile);
+        long length = this.tarFile.length();
+        
+        if(length == this.archiveLength && lastModified.equals(this.lastModified))
+        {
+            return this;
+        }
+        
+        Option[] options = this.headers.options().toArray(new Option[0]);
+        
+        if(this.endOffset < 0 || length < this.archiveLength || !isLastHeaderUnchanged())
+        {
+            return new TarIndex(this.tarFile, options);
+        }
+        
+        TarHeaderIterator tarHeaderIterator = new TarHeaderIterator(this.tarFile, this.endOffset);
+        TarHeader[] headers = Iterators.toArray(tarHeaderIterator, TarHeader.class);
+        Arrays.sort(headers);
+        
+        if(this.headers.options().contains(Option.CHECKSUMS))
+        {
+            TarChecksums.compute(this.tarFile, headers);
+        }
+        
+        TarHeaderTable merged = TarHeaderTable.merge(this.headers, headers, toSet(options));
+        
+        return new TarIndex(this.tarFile, lastModified, merged, tarHeaderIterator.getPosition(), length);
+    }
+    
+    /**
+     * @return true if the tar archive has the same length and modification time as when it was indexed
+     */
+    boolean isCurrent()
+    {
+        return this.tarFile.length() == this.archiveLength && lastModified(this.tarFile).equals(this.lastModified);
+    }
+    
+    /**
+     * @return true if the last indexed header in the archive is still there, as a cheap check that the indexed
+     *         part of the archive hasn't been rewritten
+     */
+    private boolean isLastHeaderUnchanged() throws IOException
+    {
+        if(this.headers.size() == 0) return true;
+        
+        int last = 0;
+        
+        for(int i = 1; i < this.headers.size(); i++)
+        {
+            if(this.headers.getTarFileOffset(i) > this.headers.getTarFileOffset(last)) last = i;
+        }
+        
+        TarHeader expected = this.headers.getHeader(last);
+        TarHeaderIterator tarHeaderIterator = new TarHeaderIterator(this.tarFile, expected.getTarFileOffset() - TarHeader.HEADER_BLOCK);
+        
+        try
+        {
+            if(!tarHeaderIterator.hasNext()) return false;
+            
+            TarHeader actual = tarHeaderIterator.next();
+            
+            return actual.compareTo(expected) == 0 && actual.getSize() == expected.getSize();
+        }
+        finally
+        {
+            tarHeaderIterator.close();
+        }
     }
     
     /**
@@ -82,9 +261,146 @@ public class TarIndex implements Serializable
      */
     public Optional<TarHeader> get(String key)
     {
-        int index = Arrays.binarySearch(headers, TarHeader.buildMatcher(key));
+        return get((CharSequence)key);
+    }
+    
+    /**
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     */
+    public Optional<TarHeader> get(CharSequence key)
+    {
+        long start = TarMetrics.start();
+        int index = this.headers.find(key);
+        
+        TarMetrics.lookup(start, this, index >= 0);
+        
+        return toHeader(index);
+    }
+    
+    /**
+     * @param key the UTF-8 encoded path of the file, as saved in the tar archive (i.e. including directories)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     */
+    public Optional<TarHeader> get(byte[] key)
+    {
+        return get(ByteBuffer.wrap(key));
+    }
+    
+    /**
+     * @param key the UTF-8 encoded path of the file, from the position to the limit of the buffer (the position is not changed)
+     * @return if found, a {@link TarHeader} will be present in the response, if not it will be absent
+     */
+    public Optional<TarHeader> get(ByteBuffer key)
+    {
+        long start = TarMetrics.start();
+        int index = this.headers.find(key);
+        
+        TarMetrics.lookup(start, this, index >= 0);
+        
+        return toHeader(index);
+    }
+    
+    /**
+     * Looks up a file without allocating anything, by comparing the key with the indexed UTF-8 names in place
+     * @param key the path of the file, as saved in the tar archive (i.e. including directories)
+     * @return the index of the file (see {@link #getHeader(int)}), or a negative number if not found
+     */
+    public int indexOf(CharSequence key)
+    {
+        return this.headers.find(key);
+    }
+    
+    /**
+     * Looks up a file without allocating anything, by comparing the key with the indexed UTF-8 names in place
+     * @param key the UTF-8 encoded path of the file, from the position to the limit of the buffer (the position is not changed)
+     * @return the index of the file (see {@link #getHeader(int)}), or a negative number if not found
+     */
+    public int indexOf(ByteBuffer key)
+    {
+        return this.headers.find(key);
+    }
+    
+    /**
+     * @param index the index of a file, as returned by {@link #indexOf(CharSequence)}
+     * @return a {@link TarHeader} for the file
+     * @throws IndexOutOfBoundsException if the index is negative or not less than {@link #getSize()}
+     */
+    public TarHeader getHeader(int index)
+    {
+        if(index < 0 || index >= this.headers.size()) throw new IndexOutOfBoundsException("index: " + index);
         
-        return index >= 0 ? Optional.of(this.headers[index]) : Optional.<TarHeader>absent(); 
+        return this.headers.getHeader(index);
+    }
+    
+    /**
+     * Lists the files with a path starting with a prefix (e.g. the files under a directory), in name order. The
+     * bounds of the listing are found by binary search, and headers are created as the iterator is advanced.
+     * @param prefix the prefix, e.g. <code>"images/"</code> (an empty prefix lists all files)
+     * @return an iterator over the {@link TarHeader}s of the files
+     */
+    public Iterator<TarHeader> list(CharSequence prefix)
+    {
+        return iterator(this.headers.lowerBound(prefix), this.headers.prefixEnd(prefix));
+    }
+    
+    /**
+     * Lists the files with a path in a range, in name order. The bounds of the listing are found by binary search,
+     * and headers are created as the iterator is advanced.<br>
+     * Paths are ordered by their UTF-8 bytes, see {@link TarHeader#compareTo(TarHeader)}.
+     * @param from the lower bound of the range (inclusive)
+     * @param to the upper bound of the range (exclusive)
+     * @return an iterator over the {@link TarHeader}s of the files
+     */
+    public Iterator<TarHeader> range(CharSequence from, CharSequence to)
+    {
+        int start = this.headers.lowerBound(from);
+        
+        return iterator(start, Math.max(start, this.headers.lowerBound(to)));
+    }
+    
+    private Iterator<TarHeader> iterator(final int start, final int end)
+    {
+        final TarHeaderTable headers = this.headers;
+        
+        return new UnmodifiableIterator<TarHeader>()
+        {
+            private int index = start;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return this.index < end;
+            }
+            
+            @Override
+            public TarHeader next()
+            {
+                if(this.index >= end) throw new NoSuchElementException();
+                
+                return headers.getHeader(this.index++);
+            }
+        };
+    }
+    
+    static Date lastModified(File tarFile)
+    {
+        return DateUtils.truncate(new Date(tarFile.lastModified()), Calendar.SECOND); //trim milliseconds
+    }
+    
+    TarHeaderTable getHeaders()
+    {
+        return this.headers;
+    }
+    
+    static Set<Option> toSet(Option... options)
+    {
+        return options.length == 0 ? EnumSet.noneOf(Option.class) : EnumSet.copyOf(Arrays.asList(options));
+    }
+    
+    private Optional<TarHeader> toHeader(int index)
+    {
+        return index >= 0 ? Optional.of(this.headers.getHeader(index)) : Optional.<TarHeader>absent(); 
     }
 
     /**
@@ -100,7 +416,40 @@ public class TarIndex implements Serializable
      */
     public long getSize()
     {
-        return this.headers.length;
+        return this.headers.size();
+    }
+    
+    /**
+     * @return the offset of the end of the indexed part of the tar archive (where appended files go), or -1 if unknown
+     */
+    public long getEndOffset()
+    {
+        return endOffset;
+    }
+    
+    /**
+     * @return the length of the tar archive when it was indexed
+     */
+    public long getArchiveLength()
+    {
+        return archiveLength;
+    }
+    
+    /**
+     * @return true if this is the index of a gzip compressed archive (see {@link GzipTarIndex}), whose offsets are
+     *         offsets in the uncompressed archive, so it can only be read through its {@link GzipTarIndex}
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+    
+    /**
+     * @return the approximate number of bytes used by the index (on-heap, off-heap or mapped)
+     */
+    public long getMemoryUsage()
+    {
+        return this.headers.length();
     }
     
     /**
@@ -111,6 +460,51 @@ public class TarIndex implements Serializable
         return lastModified;
     }
     
+    /**
+     * Stores the index in a binary index file, which can later be memory mapped using {@link #map(File)}.<br>
+     * The file is first written next to the target and then renamed, so a reader never sees a partially written file.
+     * @param file target file for the index
+     * @throws IOException if the operation for any reasons fail
+     */
+    public void store(File file) throws IOException
+    {
+        TarIndexFile.write(this, file);
+    }
+    
+    /**
+     * Memory maps an index file written by {@link #store(File)}. The index is queried in place, nothing is
+     * deserialized, and the mapped pages are shared through the page cache with any other process mapping the same
+     * file. Only the header checksum of the file is verified, see {@link #map(File, boolean)}.
+     * @param file the index file to map
+     * @return the mapped {@link TarIndex}
+     * @throws IOException if the file cannot be mapped, or isn't a valid index file, or is the index of a compressed
+     *             archive (see {@link GzipTarIndex#map(File)})
+     */
+    public static TarIndex map(File file) throws IOException
+    {
+        return map(file, false);
+    }
+    
+    /**
+     * Memory maps an index file written by {@link #store(File)}
+     * @param file the index file to map
+     * @param verify true if the checksum of the whole file should be verified (this reads the whole file)
+     * @return the mapped {@link TarIndex}
+     * @throws IOException if the file cannot be mapped, or isn't a valid index file, or is the index of a compressed
+     *             archive (see {@link GzipTarIndex#map(File)})
+     */
+    public static TarIndex map(File file, boolean verify) throws IOException
+    {
+        long start = TarMetrics.start();
+        TarIndex index = TarIndexFile.map(file, verify);
+        
+        if(index.isCompressed()) throw new IOException("index of a compressed archive, map it as a GzipTarIndex: " + file);
+        
+        TarMetrics.indexLoaded(start, index);
+        
+        return index;
+    }
+    
     /**
      * Serialization is performed using standard java.io serialization + compression using the ZLIB library
      * @param file target file for the serialization
@@ -187,13 +581,18 @@ public class TarIndex implements Serializable
      */
     public static TarIndex deserialize(InputStream input) throws IOException
     {
+        long start = TarMetrics.start();
         ObjectInputStream ois = null;
         InflaterInputStream iis = null;
         try
         {
             iis = new InflaterInputStream(input);
             ois = new ObjectInputStream(iis);
-            return (TarIndex)ois.readObject();
+            TarIndex index = (TarIndex)ois.readObject();
+            
+            TarMetrics.indexLoaded(start, index);
+            
+            return index;
         }
         catch(Exception e)
         {
@@ -205,4 +604,37 @@ public class TarIndex implements Serializable
             IOUtils.closeQuietly(iis);
         }
     }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        if(this.compressed) throw new NotSerializableException("index of a compressed archive: " + this.tarFile);
+        
+        TarHeader[] headers = new TarHeader[this.headers.size()];
+        
+        for(int i = 0; i < headers.length; i++)
+        {
+            headers[i] = this.headers.getHeader(i);
+        }
+        
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("headers", headers);
+        fields.put("tarFile", this.tarFile);
+        fields.put("lastModified", this.lastModified);
+        fields.put("endOffset", this.endOffset);
+        fields.put("archiveLength", this.archiveLength);
+        out.writeFields();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        TarHeader[] headers = (TarHeader[])fields.get("headers", null);
+        Arrays.sort(headers); //older indexes are sorted by (UTF-16) string order, this is close to free if already sorted
+        
+        this.headers = TarHeaderTable.build(headers, EnumSet.noneOf(Option.class));
+        this.tarFile = (File)fields.get("tarFile", null);
+        this.lastModified = (Date)fields.get("lastModified", null);
+        this.endOffset = fields.get("endOffset", -1L);
+        this.archiveLength = fields.get("archiveLength", -1L);
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads and writes the binary index file format of a {@link TarIndex}.<br>
+ * The file holds the columns of the index exactly as they are used in memory, so an index file can be memory mapped
+ * and queried in place, without any deserialization. All numbers are little endian. The layout is:<br>
+ *
+ * <pre>
+ * Offset  Size     Field
+ * 0       4        Magic "TIDX"
+ * 4       4        Format version
+ * 8       4        Flags (1 = the index has a hash table, 2 = modification times, 4 = checksums, 8 = gzip compressed archive)
+ * 12      4        Number of indexed files
+ * 16      4        Length of the packed names
+ * 20      4        Number of hash slots
+ * 24      8        Last modified time of the tar archive (ms)
+ * 32      4        Length of the tar archive path
+ * 36      4        CRC32 of everything following the header (only of the index columns in version 1)
+ * 40      8        End offset of the indexed part of the tar archive (-1 if unknown, zeros in version 1)
+ * 48      8        Length of the tar archive (zeros in version 1)
+ * 56      4        Reserved (zeros)
+ * 60      4        CRC32 of bytes 0-59
+ * 64      x        Tar archive path (UTF-8), padded to a multiple of 8 bytes
+ * ...              Index columns (see {@link TarHeaderTable#write(java.nio.channels.WritableByteChannel, java.util.zip.Checksum)})
+ * </pre>
+ */
+final class TarIndexFile
+{
+    private static final String READ_MODE = "r";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 'T' | 'I' << 8 | 'D' << 16 | 'X' << 24;
+    private static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+    private static final int ARCHIVE_END_VERSION = 2;
+    private static final int PATH_CHECKSUM_VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_CHECKSUM_OFFSET = 60;
+    private static final int DATA_CHECKSUM_OFFSET = 36;
+    private static final int FLAG_HASH_LOOKUP = 1;
+    private static final int FLAG_MOD_TIMES = 2;
+    private static final int FLAG_CHECKSUMS = 4;
+    private static final int FLAG_COMPRESSED = 8;
+
+    private TarIndexFile()
+    {
+    }
+
+    /**
+     * Writes the index to a temporary file next to the target, which is then renamed to the target
+     * @param index the index to write
+     * @param file the target file
+     * @throws IOException if writing fails
+     */
+    static void write(TarIndex index, File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+
+        try
+        {
+            TarHeaderTable headers = index.getHeaders();
+            byte[] path = index.getTarFile().getPath().getBytes(UTF8);
+            int pathLength = (path.length + 7) & ~7;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + pathLength).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(flags(headers.options()) | (index.isCompressed() ? FLAG_COMPRESSED : 0));
+            header.putInt(headers.size());
+            header.putInt(headers.namesLength());
+            header.putInt(headers.hashCapacity());
+            header.putLong(index.getLastModified().getTime());
+            header.putInt(path.length);
+            header.putInt(0);
+            header.putLong(index.getEndOffset());
+            header.putLong(index.getArchiveLength());
+            header.position(HEADER_SIZE);
+            header.put(path);
+            header.clear();
+
+            FileChannel channel = out.getChannel();
+            channel.position(header.capacity());
+
+            CRC32 dataChecksum = new CRC32();
+            dataChecksum.update(header.array(), HEADER_SIZE, pathLength);
+            headers.write(channel, dataChecksum);
+
+            header.putInt(DATA_CHECKSUM_OFFSET, (int)dataChecksum.getValue());
+            header.putInt(HEADER_CHECKSUM_OFFSET, checksum(header));
+
+            channel.write(header, 0);
+            channel.force(false);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+
+        if(!temp.renameTo(file))
+        {
+            file.delete();
+
+            if(!temp.renameTo(file))
+            {
+                temp.delete();
+                throw new IOException("failed to rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @param file the index file to map
+     * @param verify if the checksum of the columns should be verified (this reads the whole file)
+     * @return the mapped index
+     * @throws IOException if the file cannot be mapped, or isn't a valid index file
+     */
+    static TarIndex map(File file, boolean verify) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, READ_MODE);
+        ByteBuffer data;
+
+        try
+        {
+            long length = raf.length();
+
+            if(length < HEADER_SIZE) throw new IOException("not a tar index file: " + file);
+            if(length > Integer.MAX_VALUE) throw new IOException("tar index file too large to map: " + file);
+
+            data = raf.getChannel().map(MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(raf);
+        }
+
+        if(data.getInt(0) != MAGIC) throw new IOException("not a tar index file: " + file);
+        if(data.getInt(4) < MIN_VERSION || data.getInt(4) > VERSION) throw new IOException("unsupported tar index file version " + data.getInt(4) + ": " + file);
+        if(data.getInt(HEADER_CHECKSUM_OFFSET) != checksum(data)) throw new IOException("corrupt tar index file header: " + file);
+
+        int version = data.getInt(4);
+        int flags = data.getInt(8);
+        int size = data.getInt(12);
+        int namesLength = data.getInt(16);
+        int hashCapacity = data.getInt(20);
+        long lastModified = data.getLong(24);
+        int pathLength = data.getInt(32);
+        long endOffset = version >= ARCHIVE_END_VERSION ? data.getLong(40) : -1;
+        long archiveLength = version >= ARCHIVE_END_VERSION ? data.getLong(48) : -1;
+        int position = HEADER_SIZE + ((pathLength + 7) & ~7);
+
+        if(position > data.capacity()) throw new IOException("corrupt tar index file header: " + file);
+
+        byte[] path = new byte[pathLength];
+        data.position(HEADER_SIZE);
+        data.get(path);
+        data.position(position);
+
+        if(verify)
+        {
+            CRC32 checksum = new CRC32();
+            ByteBuffer checked = data.duplicate();
+            checked.position(version >= PATH_CHECKSUM_VERSION ? HEADER_SIZE : position);
+            checksum.update(checked);
+
+            if((int)checksum.getValue() != data.getInt(DATA_CHECKSUM_OFFSET)) throw new IOException("corrupt tar index file: " + file);
+        }
+
+        TarHeaderTable headers;
+
+        try
+        {
+            headers = TarHeaderTable.wrap(data, size, namesLength, hashCapacity, (flags & FLAG_MOD_TIMES) != 0, (flags & FLAG_CHECKSUMS) != 0);
+        } catch (RuntimeException e)
+        {
+            throw new IOException("corrupt tar index file: " + file, e);
+        }
+
+        return new TarIndex(new File(new String(path, UTF8)), new Date(lastModified), headers, endOffset, archiveLength, (flags & FLAG_COMPRESSED) != 0);
+    }
+
+    private static int flags(Set<TarIndex.Option> options)
+    {
+        int flags = 0;
+
+        if(options.contains(TarIndex.Option.HASH_LOOKUP)) flags |= FLAG_HASH_LOOKUP;
+        if(options.contains(TarIndex.Option.MOD_TIMES)) flags |= FLAG_MOD_TIMES;
+        if(options.contains(TarIndex.Option.CHECKSUMS)) flags |= FLAG_CHECKSUMS;
+
+        return flags;
+    }
+
+    private static int checksum(ByteBuffer header)
+    {
+        CRC32 checksum = new CRC32();
+
+        for(int i = 0; i < HEADER_CHECKSUM_OFFSET; i++)
+        {
+            checksum.update(header.get(i));
+        }
+
+        return (int)checksum.getValue();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+
+/**
+ * The global metrics hook of the library. With no listener installed (the default), instrumented code only reads
+ * one static field, and neither reads the clock nor tracks leaks.
+ */
+public final class TarMetrics
+{
+    private static volatile TarMetricsListener listener = null;
+
+    private TarMetrics()
+    {
+    }
+
+    /**
+     * Installs a listener, replacing any previously installed listener
+     * @param listener the listener, or null to disable metrics
+     */
+    public static void setListener(TarMetricsListener listener)
+    {
+        TarMetrics.listener = listener;
+    }
+
+    /**
+     * @return the installed listener, or null if there is none
+     */
+    public static TarMetricsListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * @return the current time to measure a duration from, or 0 if there is no listener
+     */
+    static long start()
+    {
+        return listener != null ? System.nanoTime() : 0;
+    }
+
+    static void indexBuilt(long start, TarIndex index)
+    {
+        TarMetricsListener listener = TarMetrics.listener;
+
+        if(listener != null && start != 0) listener.indexBuilt(index, System.nanoTime() - start);
+    }
+
+    static void indexLoaded(long start, TarIndex index)
+    {
+        TarMetricsListener listener = TarMetrics.listener;
+
+        if(listener != null && start != 0) listener.indexLoaded(index, System.nanoTime() - start);
+    }
+
+    static void lookup(long start, TarIndex index, boolean found)
+    {
+        TarMetricsListener listener = TarMetrics.listener;
+
+        if(listener != null && start != 0) listener.lookup(index, found, System.nanoTime() - start);
+    }
+
+    static void reloadFailed(File tarFile, Exception cause)
+    {
+        TarMetricsListener listener = TarMetrics.listener;
+
+        if(listener != null) listener.reloadFailed(tarFile, cause);
+    }
+
+    /**
+     * Reports a stream, channel or iterator as opened, and starts tracking it for leaks
+     * @param resource the resource
+     * @param tarFile the tar archive
+     * @param tarHeader the header of the file read, or null if the resource isn't reading a file
+     * @return a handle to close when the resource is closed, or null if there is no listener
+     */
+    static Handle opened(Object resource, File tarFile, TarHeader tarHeader)
+    {
+        TarMetricsListener listener = TarMetrics.listener;
+
+        if(listener == null) return null;
+
+        if(tarHeader != null) listener.entryOpened(tarFile, tarHeader);
+
+        String description = resource.getClass().getSimpleName() + (tarHeader != null ? " " + tarHeader.getName() : "") + " in " + tarFile;
+
+        return new Handle(LeakTracker.track(resource, description, listener), tarFile, tarHeader);
+    }
+
+    /**
+     * The metrics state of an open resource
+     */
+    static final class Handle
+    {
+        private final LeakTracker.Leak leak;
+        private final File tarFile;
+        private final TarHeader tarHeader;
+        private final long start = System.nanoTime();
+
+        private Handle(LeakTracker.Leak leak, File tarFile, TarHeader tarHeader)
+        {
+            this.leak = leak;
+            this.tarFile = tarFile;
+            this.tarHeader = tarHeader;
+        }
+
+        /**
+         * @param bytesRead the number of bytes read from the resource
+         */
+        void closed(long bytesRead)
+        {
+            this.leak.close();
+
+            TarMetricsListener listener = TarMetrics.listener;
+
+            if(listener != null && this.tarHeader != null) listener.entryClosed(this.tarFile, this.tarHeader, bytesRead, System.nanoTime() - this.start);
+        }
+    }
+}
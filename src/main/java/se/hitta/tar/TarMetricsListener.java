@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+
+/**
+ * Receives metrics events from the library, see {@link TarMetrics#setListener(TarMetricsListener)}. All methods do
+ * nothing by default, so a listener only overrides the events it is interested in.<br>
+ * Events are delivered synchronously, on the thread doing the work, often on hot paths (e.g. every lookup), so
+ * listeners must be thread safe and fast. {@link TarStatistics} is a listener that records lock-free counters and
+ * latency histograms, which can be bridged to a metrics system by polling it.<br>
+ * Durations are in nanoseconds.
+ */
+public abstract class TarMetricsListener
+{
+    /**
+     * An index was built by scanning a tar archive
+     * @param index the index
+     * @param nanos the time it took to build the index
+     */
+    public void indexBuilt(TarIndex index, long nanos)
+    {
+    }
+
+    /**
+     * An index was loaded, by deserializing it or mapping an index file
+     * @param index the index
+     * @param nanos the time it took to load the index
+     */
+    public void indexLoaded(TarIndex index, long nanos)
+    {
+    }
+
+    /**
+     * A file was looked up by name in an index
+     * @param index the index
+     * @param found true if the file was found
+     * @param nanos the time the lookup took
+     */
+    public void lookup(TarIndex index, boolean found, long nanos)
+    {
+    }
+
+    /**
+     * A stream or channel reading a file in a tar archive was opened
+     * @param tarFile the tar archive
+     * @param tarHeader the header of the file
+     */
+    public void entryOpened(File tarFile, TarHeader tarHeader)
+    {
+    }
+
+    /**
+     * A stream or channel reading a file in a tar archive was closed
+     * @param tarFile the tar archive
+     * @param tarHeader the header of the file
+     * @param bytesRead the number of bytes read from the stream or channel
+     * @param nanos the time the stream or channel was open
+     */
+    public void entryClosed(File tarFile, TarHeader tarHeader, long bytesRead, long nanos)
+    {
+    }
+
+    /**
+     * A {@link ReloadingTarArchive} failed to reload its archive while polling it. The current version of the archive
+     * is kept, and reloading is tried again on the next poll.
+     * @param tarFile the tar archive
+     * @param cause the cause of the failure
+     */
+    public void reloadFailed(File tarFile, Exception cause)
+    {
+    }
+
+    /**
+     * A stream, channel or iterator was garbage collected without being closed. Leaks are only tracked for resources
+     * created while a listener is installed, and are reported when a later resource is created.
+     * @param resource a description of the resource, e.g. <code>TarEntryInputStream images/top.jpg in /data/test.tar</code>
+     */
+    public void leaked(String resource)
+    {
+    }
+}
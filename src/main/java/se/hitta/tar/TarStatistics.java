@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link TarMetricsListener} keeping lock-free counters and {@link LatencyHistogram}s of the events of the library,
+ * to be polled by (or bridged to) a metrics system:
+ * <pre>
+ * TarStatistics statistics = new TarStatistics();
+ * TarMetrics.setListener(statistics);
+ * </pre>
+ */
+public class TarStatistics extends TarMetricsListener
+{
+    private final LatencyHistogram indexBuildTimes = new LatencyHistogram();
+    private final LatencyHistogram indexLoadTimes = new LatencyHistogram();
+    private final LatencyHistogram lookupTimes = new LatencyHistogram();
+    private final LatencyHistogram entryReadTimes = new LatencyHistogram();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder entriesOpened = new LongAdder();
+    private final LongAdder entriesClosed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+    private final ConcurrentMap<File, AtomicLong> bytesReadByArchive = new ConcurrentHashMap<File, AtomicLong>();
+
+    @Override
+    public void indexBuilt(TarIndex index, long nanos)
+    {
+        this.indexBuildTimes.record(nanos);
+    }
+
+    @Override
+    public void indexLoaded(TarIndex index, long nanos)
+    {
+        this.indexLoadTimes.record(nanos);
+    }
+
+    @Override
+    public void lookup(TarIndex index, boolean found, long nanos)
+    {
+        (found ? this.hits : this.misses).increment();
+        this.lookupTimes.record(nanos);
+    }
+
+    @Override
+    public void entryOpened(File tarFile, TarHeader tarHeader)
+    {
+        this.entriesOpened.increment();
+    }
+
+    @Override
+    public void entryClosed(File tarFile, TarHeader tarHeader, long bytesRead, long nanos)
+    {
+        this.entriesClosed.increment();
+        this.bytesRead.add(bytesRead);
+        this.entryReadTimes.record(nanos);
+
+        AtomicLong archive = this.bytesReadByArchive.get(tarFile);
+
+        if(archive == null)
+        {
+            AtomicLong created = new AtomicLong();
+            archive = this.bytesReadByArchive.putIfAbsent(tarFile, created);
+
+            if(archive == null) archive = created;
+        }
+
+        archive.addAndGet(bytesRead);
+    }
+
+    @Override
+    public void leaked(String resource)
+    {
+        this.leaks.increment();
+    }
+
+    @Override
+    public void reloadFailed(File tarFile, Exception cause)
+    {
+        this.reloadFailures.increment();
+    }
+
+    /**
+     * @return the times it took to build indexes by scanning archives
+     */
+    public LatencyHistogram getIndexBuildTimes()
+    {
+        return this.indexBuildTimes;
+    }
+
+    /**
+     * @return the times it took to deserialize or map indexes
+     */
+    public LatencyHistogram getIndexLoadTimes()
+    {
+        return this.indexLoadTimes;
+    }
+
+    /**
+     * @return the times lookups by name took
+     */
+    public LatencyHistogram getLookupTimes()
+    {
+        return this.lookupTimes;
+    }
+
+    /**
+     * @return the times streams and channels reading files were open
+     */
+    public LatencyHistogram getEntryReadTimes()
+    {
+        return this.entryReadTimes;
+    }
+
+    /**
+     * @return the number of lookups that found a file
+     */
+    public long getHitCount()
+    {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that didn't find a file
+     */
+    public long getMissCount()
+    {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the number of streams and channels reading files that are open
+     */
+    public long getOpenEntryCount()
+    {
+        return this.entriesOpened.sum() - this.entriesClosed.sum();
+    }
+
+    /**
+     * @return the number of bytes read from closed streams and channels
+     */
+    public long getBytesRead()
+    {
+        return this.bytesRead.sum();
+    }
+
+    /**
+     * @param tarFile a tar archive
+     * @return the number of bytes read from closed streams and channels reading files in the archive
+     */
+    public long getBytesRead(File tarFile)
+    {
+        AtomicLong bytesRead = this.bytesReadByArchive.get(tarFile);
+
+        return bytesRead != null ? bytesRead.get() : 0;
+    }
+
+    /**
+     * @return the number of streams, channels and iterators garbage collected without being closed
+     */
+    public long getLeakCount()
+    {
+        return this.leaks.sum();
+    }
+
+    /**
+     * @return the number of failed polls of reloading archives
+     */
+    public long getReloadFailureCount()
+    {
+        return this.reloadFailures.sum();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Hittapunktse AB (http://www.hitta.se/)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.hitta.tar;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static se.hitta.tar.TarHeader.*;
+
+/**
+ * Follows the chain of headers through the bytes of a tar archive as they arrive, e.g. from a stream that cannot be
+ * positioned. The bytes of archived files are skipped, and only header blocks are copied (into a single reused block).
+ * If checksums are asked for, the bytes of archived files are checksummed as they pass.
+ */
+final class TarStreamScanner
+{
+    private final List<TarHeader> headers = new ArrayList<TarHeader>();
+    private final byte[] block = new byte[HEADER_BLOCK];
+    private final CRC32 checksum;
+    private int filled = 0;
+    private long position = 0;
+    private long next = 0;
+    private boolean endOfArchive = false;
+    private TarHeader current;
+    private long contentEnd;
+
+    /**
+     * @param checksums true if the checksums of the content of the files should be computed, see {@link TarIndex.Option#CHECKSUMS}
+     */
+    TarStreamScanner(boolean checksums)
+    {
+        this.checksum = checksums ? new CRC32() : null;
+    }
+
+    /**
+     * @param buffer the next bytes of the archive, the buffer is consumed
+     */
+    void scan(ByteBuffer buffer)
+    {
+        while(buffer.hasRemaining())
+        {
+            if(this.endOfArchive || this.position < this.next)
+            {
+                //skip file data (or anything after the end of the archive)
+                int count = this.endOfArchive ? buffer.remaining() : (int)Math.min(buffer.remaining(), this.next - this.position);
+
+                if(this.current != null)
+                {
+                    checksum(buffer, (int)Math.min(count, this.contentEnd - this.position));
+                }
+
+                buffer.position(buffer.position() + count);
+                this.position += count;
+                continue;
+            }
+
+            int count = Math.min(buffer.remaining(), HEADER_BLOCK - this.filled);
+            buffer.get(this.block, this.filled, count);
+            this.filled += count;
+            this.position += count;
+
+            if(this.filled == HEADER_BLOCK)
+            {
+                this.filled = 0;
+
+                if(TarBlockReader.isZeroBlock(this.block, 0))
+                {
+                    this.endOfArchive = true;
+                }
+                else
+                {
+                    TarHeader header = TarHeader.build(this.block, 0, this.next + HEADER_BLOCK);
+                    this.headers.add(header);
+                    this.next += TarBlockReader.next(header);
+
+                    if(this.checksum != null)
+                    {
+                        this.checksum.reset();
+                        this.current = header;
+                        this.contentEnd = header.getTarFileOffset() + header.getSize();
+
+                        if(header.getSize() == 0) checksum(buffer, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checksums the next bytes of the content of the current file, at the position of the buffer
+     */
+    private void checksum(ByteBuffer buffer, int count)
+    {
+        ByteBuffer content = buffer.duplicate();
+        content.limit(content.position() + count);
+        this.checksum.update(content);
+
+        if(this.position + count == this.contentEnd)
+        {
+            this.current.setChecksum(this.checksum.getValue());
+            this.current = null;
+        }
+    }
+
+    /**
+     * @return true if the end of archive marker has been scanned
+     */
+    boolean isEndOfArchive()
+    {
+        return this.endOfArchive;
+    }
+
+    /**
+     * @return the number of bytes scanned
+     */
+    long getPosition()
+    {
+        return this.position;
+    }
+
+    /**
+     * @return the offset of the header following the last scanned header, i.e. the end of the archive once all of
+     *         it has been scanned
+     */
+    long getEndOffset()
+    {
+        return this.next;
+    }
+
+    /**
+     * @param options {@link TarIndex.Option#OFF_HEAP} and {@link TarIndex.Option#HASH_LOOKUP} are honored
+     * @return a table of the headers scanned so far
+     */
+    TarHeaderTable build(Set<TarIndex.Option> options)
+    {
+        TarHeader[] sorted = this.headers.toArray(new TarHeader[this.headers.size()]);
+        Arrays.sort(sorted);
+
+        return TarHeaderTable.build(sorted, options);
+    }
+}
@@ -0,0 +1,113 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncTarArchiveTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ExecutorService executor;
+    private AsyncTarArchive archive;
+    private String expected;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.expected = IOUtils.toString(getClass().getClassLoader().getResource("glUtils.js"));
+        this.executor = Executors.newFixedThreadPool(2);
+        this.archive = new AsyncTarArchive(new TarIndex(new File(getClass().getClassLoader().getResource("test.tar").getPath())), 2, this.executor);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        this.archive.close();
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void canReadEntries() throws Exception
+    {
+        assertEquals(this.expected, UTF8.decode(this.archive.get("scripts/glUtils.js").get().get()).toString());
+        assertFalse(this.archive.get("missing").get().isPresent());
+        assertEquals(69202, this.archive.get("images/top.jpg").get().get().remaining());
+    }
+
+    @Test
+    public void queuesReadsBeyondConcurrencyLimit() throws Exception
+    {
+        TarHeader header = this.archive.getIndex().get("scripts/glUtils.js").get();
+        List<CompletableFuture<ByteBuffer>> results = new ArrayList<CompletableFuture<ByteBuffer>>();
+
+        for(int i = 0; i < 200; i++)
+        {
+            results.add(this.archive.read(header));
+            assertTrue(this.archive.getReadsInFlight() <= 2);
+        }
+
+        for(CompletableFuture<ByteBuffer> result : results)
+        {
+            assertEquals(this.expected, UTF8.decode(result.get()).toString());
+        }
+
+        assertEquals(0, this.archive.getPendingReads());
+    }
+
+    @Test
+    public void canReadRangeIntoSuppliedBuffer() throws Exception
+    {
+        TarHeader header = this.archive.getIndex().get("scripts/glUtils.js").get();
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.position(5);
+
+        ByteBuffer head = buffer.duplicate();
+        head.limit(15);
+
+        assertEquals(10, this.archive.read(header, 100, head).get().intValue());
+        assertEquals(15, this.archive.read(header, header.getSize() - 15, buffer).get().intValue());
+        assertEquals(20, buffer.position());
+        assertEquals(-1, this.archive.read(header, header.getSize(), buffer).get().intValue());
+
+        buffer.position(5);
+        assertEquals(this.expected.substring(this.expected.length() - 15), UTF8.decode(buffer).toString());
+    }
+
+    @Test
+    public void failsReadsWhenClosed() throws Exception
+    {
+        TarHeader header = this.archive.getIndex().get("scripts/glUtils.js").get();
+        CompletableFuture<ByteBuffer> inFlight = this.archive.read(header);
+
+        this.archive.close();
+
+        assertEquals(this.expected, UTF8.decode(inFlight.get()).toString());
+
+        try
+        {
+            this.archive.read(header).get();
+            fail();
+        } catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
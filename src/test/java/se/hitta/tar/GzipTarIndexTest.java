@@ -0,0 +1,185 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GzipTarIndexTest
+{
+    private File tarFile;
+    private File gzFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        this.gzFile = File.createTempFile("test", ".tar.gz");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.gzFile.delete();
+    }
+
+    @Test
+    public void canReadFromSingleMemberGzip() throws IOException
+    {
+        compress(Integer.MAX_VALUE);
+
+        GzipTarIndex index = new GzipTarIndex(this.gzFile);
+
+        assertEquals(1, index.getCheckpointCount());
+        assertReadsLikeTarArchive(index);
+    }
+
+    @Test
+    public void canReadFromMultiMemberGzip() throws IOException
+    {
+        compress(50000);
+
+        GzipTarIndex index = new GzipTarIndex(this.gzFile, 100000);
+
+        assertTrue(index.getCheckpointCount() > 5);
+        assertReadsLikeTarArchive(index);
+    }
+
+    @Test
+    public void canStoreAndMapGzipTarIndex() throws IOException
+    {
+        compress(50000);
+
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            GzipTarIndex index = new GzipTarIndex(this.gzFile, 100000, TarIndex.Option.HASH_LOOKUP);
+            index.store(indexFile);
+
+            GzipTarIndex mapped = GzipTarIndex.map(indexFile);
+
+            assertEquals(index.getCheckpointCount(), mapped.getCheckpointCount());
+            assertReadsLikeTarArchive(mapped);
+        }
+        finally
+        {
+            indexFile.delete();
+            new File(indexFile.getPath() + GzipTarIndex.CHECKPOINT_SUFFIX).delete();
+        }
+    }
+
+    @Test
+    public void refusesToReadCompressedArchiveAsPlainArchive() throws IOException
+    {
+        compress(50000);
+
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            GzipTarIndex index = new GzipTarIndex(this.gzFile);
+            index.store(indexFile);
+
+            assertTrue(index.getIndex().isCompressed());
+            assertTrue(GzipTarIndex.map(indexFile).getIndex().isCompressed());
+
+            try
+            {
+                new TarArchive(index.getIndex()).close();
+                fail("opened a compressed archive as a plain archive");
+            } catch (IllegalArgumentException e)
+            {
+                //expected
+            }
+
+            try
+            {
+                TarIndex.map(indexFile);
+                fail("mapped the index of a compressed archive as a plain index");
+            } catch (IOException e)
+            {
+                //expected
+            }
+
+            try
+            {
+                index.getIndex().refresh();
+                fail("refreshed the index of a compressed archive");
+            } catch (IOException e)
+            {
+                //expected
+            }
+        }
+        finally
+        {
+            indexFile.delete();
+            new File(indexFile.getPath() + GzipTarIndex.CHECKPOINT_SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Compresses the test archive as a concatenation of gzip members of the provided uncompressed size
+     */
+    private void compress(int memberSize) throws IOException
+    {
+        byte[] tar = FileUtils.readFileToByteArray(this.tarFile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for(int offset = 0; offset < tar.length; offset += memberSize)
+        {
+            GZIPOutputStream member = new GZIPOutputStream(out);
+            member.write(tar, offset, Math.min(memberSize, tar.length - offset));
+            member.finish();
+        }
+
+        FileUtils.writeByteArrayToFile(this.gzFile, out.toByteArray());
+    }
+
+    private void assertReadsLikeTarArchive(GzipTarIndex index) throws IOException
+    {
+        TarArchive archive = new TarArchive(this.tarFile);
+
+        try
+        {
+            assertEquals(archive.getIndex().getSize(), index.getIndex().getSize());
+
+            for(int i = 0; i < archive.getIndex().getSize(); i++)
+            {
+                TarHeader expected = archive.getIndex().getHeader(i);
+                TarHeader header = index.get(expected.getName()).get();
+
+                assertEquals(expected.getTarFileOffset(), header.getTarFileOffset());
+                assertArrayEquals(expected.getName(), read(archive.newInputStream(expected)), read(index.newInputStream(header)));
+            }
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    private static byte[] read(InputStream stream) throws IOException
+    {
+        try
+        {
+            return IOUtils.toByteArray(stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
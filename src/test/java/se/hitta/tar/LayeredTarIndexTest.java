@@ -0,0 +1,310 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LayeredTarIndexTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private List<TarIndex> layers;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("layered", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.layers = new ArrayList<TarIndex>();
+
+        this.layers.add(write("base.tar", "a.txt", "base a", "b.txt", "base b", "d/x", "base x", "d/y", "base y", "e/z", "base z", "f/g/h", "base h"));
+        this.layers.add(write("delta1.tar", "a.txt", "delta1 a", ".wh.b.txt", "", "d/.wh..wh..opq", "", "d/w", "delta1 w", "f/.wh.g", ""));
+        this.layers.add(write("delta2.tar", "b.txt", "delta2 b", "f/g/i", "delta2 i"));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    private TarIndex write(String tarName, String... entries) throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(new File(this.directory, tarName));
+
+        try
+        {
+            for(int i = 0; i < entries.length; i += 2)
+            {
+                writer.add(entries[i], entries[i + 1].getBytes(UTF8));
+            }
+
+            return writer.finish();
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void upperLayersShadowAndDeleteFiles() throws IOException
+    {
+        LayeredTarIndex index = new LayeredTarIndex(this.layers, TarIndex.Option.HASH_LOOKUP);
+        LayeredTarArchive archive = new LayeredTarArchive(index);
+
+        try
+        {
+            assertEquals(Arrays.asList("a.txt", "b.txt", "d/w", "e/z", "f/g/i"), names(index));
+
+            assertEquals("delta1 a", read(archive, "a.txt"));
+            assertEquals("delta2 b", read(archive, "b.txt"));
+            assertEquals("delta1 w", read(archive, "d/w"));
+            assertEquals("base z", read(archive, "e/z"));
+            assertEquals("delta2 i", read(archive, "f/g/i"));
+            assertEquals(2, index.getLayer(index.indexOf("b.txt")));
+
+            assertFalse(index.get("d/x").isPresent());
+            assertFalse(index.get("f/g/h").isPresent());
+            assertFalse(index.get(".wh.b.txt").isPresent());
+            assertFalse(archive.newInputStream("d/.wh..wh..opq").isPresent());
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void canCompactLayers() throws IOException
+    {
+        LayeredTarArchive archive = new LayeredTarArchive(new LayeredTarIndex(this.layers));
+        TarIndex compacted;
+
+        try
+        {
+            compacted = archive.compact(new File(this.directory, "compacted.tar"));
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        //the compacted archive reads like the layers did, and can be indexed from scratch
+        LayeredTarIndex index = new LayeredTarIndex(Arrays.asList(new TarIndex(compacted.getTarFile())));
+        archive = new LayeredTarArchive(index);
+
+        try
+        {
+            assertEquals(Arrays.asList("a.txt", "b.txt", "d/w", "e/z", "f/g/i"), names(index));
+            assertEquals("delta1 a", read(archive, "a.txt"));
+            assertEquals("delta2 b", read(archive, "b.txt"));
+            assertEquals("base z", read(archive, "e/z"));
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsModTimesAndModes() throws IOException
+    {
+        byte[] content = "delta3 e".getBytes(UTF8);
+        TarArchiveWriter writer = new TarArchiveWriter(new File(this.directory, "delta3.tar"));
+
+        try
+        {
+            writer.add("e/z", new ByteArrayInputStream(content), content.length, 1234567890L, 0600);
+            this.layers.add(writer.finish());
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        LayeredTarArchive archive = new LayeredTarArchive(new LayeredTarIndex(this.layers));
+        TarIndex compacted;
+
+        try
+        {
+            compacted = archive.compact(new File(this.directory, "compacted.tar"), TarIndex.Option.MOD_TIMES);
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        TarArchive tarArchive = new TarArchive(compacted);
+
+        try
+        {
+            TarHeader header = compacted.get("e/z").get();
+            byte[] block = tarArchive.readHeaderBlock(header);
+
+            assertEquals(1234567890L, header.getModTime());
+            assertEquals(1234567890L, TarHeader.build(block, 0, header.getTarFileOffset()).getModTime());
+            assertEquals(0600, TarHeader.parseMode(block, 0));
+
+            TarHeader base = compacted.get("a.txt").get();
+
+            assertEquals(TarArchiveWriter.DEFAULT_MODE, TarHeader.parseMode(tarArchive.readHeaderBlock(base), 0));
+        }
+        finally
+        {
+            tarArchive.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsDirectoriesAndLinks() throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(new File(this.directory, "delta3.tar"));
+
+        try
+        {
+            writer.add("d/", TarHeader.LF_DIR, "", 1234567890L, 0755);
+            writer.add("e/link", TarHeader.LF_SYMLINK, "z", 1234567890L, 0777);
+            writer.add("hard.txt", TarHeader.LF_LINK, "a.txt", 1234567890L, 0644);
+            this.layers.add(writer.finish());
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        LayeredTarArchive archive = new LayeredTarArchive(new LayeredTarIndex(this.layers));
+        TarIndex compacted;
+
+        try
+        {
+            compacted = archive.compact(new File(this.directory, "compacted.tar"), TarIndex.Option.CHECKSUMS);
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        //the entries are in the archive, not only in the index built while writing it
+        TarIndex scanned = new TarIndex(compacted.getTarFile(), TarIndex.Option.MOD_TIMES);
+        TarArchive tarArchive = new TarArchive(scanned);
+
+        try
+        {
+            TarHeader directory = scanned.get("d/").get();
+            TarHeader symlink = scanned.get("e/link").get();
+            TarHeader hardLink = scanned.get("hard.txt").get();
+
+            assertEquals(TarHeader.LF_DIR, directory.getLinkFlag());
+            assertEquals(0755, TarHeader.parseMode(tarArchive.readHeaderBlock(directory), 0));
+            assertEquals(TarHeader.LF_SYMLINK, symlink.getLinkFlag());
+            assertEquals("z", new String(TarHeader.parseLinkName(tarArchive.readHeaderBlock(symlink), 0), UTF8));
+            assertEquals(TarHeader.LF_LINK, hardLink.getLinkFlag());
+            assertEquals("a.txt", new String(TarHeader.parseLinkName(tarArchive.readHeaderBlock(hardLink), 0), UTF8));
+            assertEquals(0, hardLink.getSize());
+            assertEquals(1234567890L, hardLink.getModTime());
+            assertEquals(0, compacted.get("hard.txt").get().getChecksum());
+        }
+        finally
+        {
+            tarArchive.close();
+        }
+    }
+
+    @Test
+    public void refusesToCompactDevices() throws IOException
+    {
+        //the writer doesn't write devices, so the layer is written by hand
+        File tarFile = new File(this.directory, "delta3.tar");
+        byte[] blocks = new byte[TarHeader.HEADER_BLOCK * 3];
+        TarHeader.format(blocks, 0, "dev/null".getBytes(UTF8), 0, TarHeader.LF_CHR, 1234567890L, 0666);
+        FileUtils.writeByteArrayToFile(tarFile, blocks);
+        this.layers.add(new TarIndex(tarFile));
+
+        LayeredTarArchive archive = new LayeredTarArchive(new LayeredTarIndex(this.layers));
+        File compacted = new File(this.directory, "compacted.tar");
+
+        try
+        {
+            archive.compact(compacted);
+            fail("compacted a device");
+        } catch (IOException e)
+        {
+            //expected
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        assertFalse(compacted.exists());
+    }
+
+    @Test
+    public void failedCompactionLeavesNoArchive() throws IOException
+    {
+        LayeredTarArchive archive = new LayeredTarArchive(new LayeredTarIndex(this.layers));
+        File tarFile = new File(this.directory, "compacted.tar");
+
+        //the base layer is cut short after it was indexed
+        RandomAccessFile base = new RandomAccessFile(this.layers.get(0).getTarFile(), "rw");
+
+        try
+        {
+            base.setLength(TarHeader.HEADER_BLOCK * 2);
+        }
+        finally
+        {
+            base.close();
+        }
+
+        try
+        {
+            archive.compact(tarFile);
+            fail("compacted a truncated layer");
+        } catch (IOException e)
+        {
+            //expected
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        assertFalse(tarFile.exists());
+    }
+
+    private static List<String> names(LayeredTarIndex index)
+    {
+        List<String> names = new ArrayList<String>();
+
+        for(int i = 0; i < index.getSize(); i++)
+        {
+            names.add(index.getHeader(i).getName());
+        }
+
+        return names;
+    }
+
+    private static String read(LayeredTarArchive archive, String key) throws IOException
+    {
+        return IOUtils.toString(archive.newInputStream(key).get(), "UTF-8");
+    }
+}
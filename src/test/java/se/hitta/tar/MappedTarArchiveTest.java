@@ -0,0 +1,45 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class MappedTarArchiveTest
+{
+    @Test
+    public void canReadFromMappedTarArchive() throws IOException
+    {
+        String expected = IOUtils.toString(getClass().getClassLoader().getResource("glUtils.js"));
+
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+
+        MappedTarArchive archive = new MappedTarArchive(tarFile);
+
+        try
+        {
+            TarHeader header = archive.getIndex().get("scripts/glUtils.js").get();
+            InputStream stream = archive.getInputStream(header);
+
+            assertEquals(expected, IOUtils.toString(stream));
+
+            ByteBuffer buffer = archive.get("images/top.jpg").get();
+
+            assertTrue(buffer.isReadOnly());
+            assertEquals(0, buffer.position());
+            assertEquals(69202, buffer.remaining());
+            assertFalse(archive.get("images/missing.jpg").isPresent());
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+}
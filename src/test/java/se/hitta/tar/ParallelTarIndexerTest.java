@@ -0,0 +1,87 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ParallelTarIndexerTest
+{
+    @Test
+    public void indexesLikeSequentialIndexing() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+
+        TarIndex expected = new TarIndex(tarFile);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try
+        {
+            for(long segmentSize : new long[] { 512, 4096, 100000, ParallelTarIndexer.DEFAULT_SEGMENT_SIZE })
+            {
+                TarIndex tarIndex = new ParallelTarIndexer(pool, segmentSize).index(tarFile);
+
+                assertEquals(expected.getSize(), tarIndex.getSize());
+                assertEquals(expected.getLastModified(), tarIndex.getLastModified());
+
+                for(int i = 0; i < expected.getSize(); i++)
+                {
+                    assertEquals(expected.getHeader(i).getName(), tarIndex.getHeader(i).getName());
+                    assertEquals(expected.getHeader(i).getTarFileOffset(), tarIndex.getHeader(i).getTarFileOffset());
+                    assertEquals(expected.getHeader(i).getSize(), tarIndex.getHeader(i).getSize());
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void indexesArchiveContainingArchiveLikeSequentialIndexing() throws IOException
+    {
+        File nested = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        File tarFile = File.createTempFile("nested", ".tar");
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try
+        {
+            //segments starting within the nested archive find its headers first, and have to be scanned again
+            TarArchiveWriter writer = new TarArchiveWriter(tarFile);
+            writer.add("a.txt", "a".getBytes("UTF-8"));
+            writer.add("nested.tar", nested);
+            writer.add("z.txt", "z".getBytes("UTF-8"));
+            writer.finish();
+
+            TarIndex expected = new TarIndex(tarFile);
+
+            assertEquals(3, expected.getSize());
+
+            for(long segmentSize : new long[] { 512, 4096, 100000 })
+            {
+                TarIndex tarIndex = new ParallelTarIndexer(pool, segmentSize).index(tarFile);
+
+                assertEquals(expected.getSize(), tarIndex.getSize());
+                assertEquals(expected.getEndOffset(), tarIndex.getEndOffset());
+                assertFalse(tarIndex.get("scripts/glUtils.js").isPresent());
+
+                for(int i = 0; i < expected.getSize(); i++)
+                {
+                    assertEquals(expected.getHeader(i).getName(), tarIndex.getHeader(i).getName());
+                    assertEquals(expected.getHeader(i).getTarFileOffset(), tarIndex.getHeader(i).getTarFileOffset());
+                    assertEquals(expected.getHeader(i).getSize(), tarIndex.getHeader(i).getSize());
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            tarFile.delete();
+        }
+    }
+}
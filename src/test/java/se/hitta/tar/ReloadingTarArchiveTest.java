@@ -0,0 +1,215 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReloadingTarArchiveTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private File tarFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("reloading", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.tarFile = new File(this.directory, "test.tar");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    /**
+     * Writes a new version of the archive next to it and renames it over the old one, the way a deploy would
+     */
+    private TarIndex deploy(int version, String... names) throws IOException
+    {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+
+        for(String name : names)
+        {
+            contents.put(name, name + " v" + version);
+        }
+
+        return deploy(version, contents);
+    }
+
+    private TarIndex deploy(int version, Map<String, String> contents) throws IOException
+    {
+        File temp = new File(this.directory, "test.tar.tmp");
+        TarArchiveWriter writer = new TarArchiveWriter(temp);
+
+        try
+        {
+            for(Map.Entry<String, String> entry : contents.entrySet())
+            {
+                writer.add(entry.getKey(), entry.getValue().getBytes(UTF8));
+            }
+
+            writer.finish();
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        //modification times are kept in seconds, make sure every version is seen as changed
+        temp.setLastModified(1000000000000L + version * 10000L);
+
+        if(!temp.renameTo(this.tarFile)) throw new IOException("failed to rename " + temp);
+
+        return new TarIndex(this.tarFile);
+    }
+
+    @Test
+    public void reloadsReplacedArchiveWithoutBreakingReaders() throws IOException
+    {
+        ReloadingTarArchive archive = new ReloadingTarArchive(deploy(1, "a.txt", "b.txt"));
+
+        try
+        {
+            assertFalse(archive.reload());
+
+            InputStream old = archive.newInputStream("a.txt").get();
+
+            deploy(2, "a.txt", "c.txt");
+
+            assertTrue(archive.reload());
+            assertEquals(1, archive.getReloadCount());
+            assertEquals("a.txt v2", IOUtils.toString(archive.newInputStream("a.txt").get(), "UTF-8"));
+            assertEquals("c.txt v2", IOUtils.toString(archive.newInputStream("c.txt").get(), "UTF-8"));
+            assertFalse(archive.newInputStream("b.txt").isPresent());
+
+            //a stream opened before the reload still reads the old version
+            assertEquals("a.txt v1", IOUtils.toString(old, "UTF-8"));
+            old.close();
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        try
+        {
+            archive.acquire();
+            fail("acquired a closed archive");
+        } catch (IOException e)
+        {
+            //expected
+        }
+    }
+
+    @Test
+    public void reloadsByPolling() throws Exception
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        ReloadingTarArchive archive = new ReloadingTarArchive(deploy(1, "a.txt"), executor, 10, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            deploy(2, "a.txt");
+
+            for(int i = 0; i < 500 && archive.getReloadCount() == 0; i++)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, archive.getReloadCount());
+            assertEquals("a.txt v2", IOUtils.toString(archive.newInputStream("a.txt").get(), "UTF-8"));
+        }
+        finally
+        {
+            archive.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reindexesReplacedArchiveOfTheSameLength() throws IOException
+    {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+        contents.put("a.txt", "a");
+        contents.put("b.txt", "b");
+
+        ReloadingTarArchive archive = new ReloadingTarArchive(deploy(1, contents));
+
+        try
+        {
+            //the same length, and the same last file, but a file within the archive has grown
+            contents.put("a.txt", "aa");
+            deploy(2, contents);
+
+            assertTrue(archive.reload());
+            assertEquals("aa", IOUtils.toString(archive.newInputStream("a.txt").get(), "UTF-8"));
+            assertEquals(2, archive.getIndex().get("a.txt").get().getSize());
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void keepsPollingAfterFailedReloads() throws Exception
+    {
+        TarStatistics statistics = new TarStatistics();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        ReloadingTarArchive archive = new ReloadingTarArchive(deploy(1, "a.txt"), executor, 10, TimeUnit.MILLISECONDS);
+
+        TarMetrics.setListener(statistics);
+
+        try
+        {
+            //the archive is missing for a while
+            assertTrue(this.tarFile.delete());
+
+            for(int i = 0; i < 500 && statistics.getReloadFailureCount() < 2; i++)
+            {
+                Thread.sleep(10);
+            }
+
+            assertTrue(statistics.getReloadFailureCount() >= 2);
+            assertEquals("a.txt v1", IOUtils.toString(archive.newInputStream("a.txt").get(), "UTF-8"));
+
+            deploy(2, "a.txt");
+
+            for(int i = 0; i < 500 && archive.getReloadCount() == 0; i++)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, archive.getReloadCount());
+            assertEquals("a.txt v2", IOUtils.toString(archive.newInputStream("a.txt").get(), "UTF-8"));
+        }
+        finally
+        {
+            TarMetrics.setListener(null);
+            archive.close();
+            executor.shutdown();
+        }
+    }
+}
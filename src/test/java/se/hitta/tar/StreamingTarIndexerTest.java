@@ -0,0 +1,147 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class StreamingTarIndexerTest
+{
+    @Test
+    public void indexesAndWritesStream() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        File copy = File.createTempFile("test", ".tar");
+        InputStream in = new FileInputStream(tarFile);
+
+        try
+        {
+            TarIndex tarIndex = new StreamingTarIndexer().index(in, copy);
+
+            assertTrue(FileUtils.contentEquals(tarFile, copy));
+            assertIndexedLike(new TarIndex(copy), tarIndex);
+        }
+        finally
+        {
+            in.close();
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void keepsUnknownChecksumOfTruncatedFile() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        TarIndex expected = new TarIndex(tarFile, TarIndex.Option.CHECKSUMS);
+        int last = 0;
+
+        for(int i = 1; i < expected.getSize(); i++)
+        {
+            if(expected.getHeader(i).getTarFileOffset() > expected.getHeader(last).getTarFileOffset()) last = i;
+        }
+
+        //cut the stream short within the content of the last file
+        TarHeader truncated = expected.getHeader(last);
+        byte[] content = Arrays.copyOf(FileUtils.readFileToByteArray(tarFile), (int)truncated.getTarFileOffset() + 1);
+
+        File copy = File.createTempFile("test", ".tar");
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            TarIndex tarIndex = new StreamingTarIndexer(TarIndex.Option.CHECKSUMS).index(new ByteArrayInputStream(content), copy);
+            tarIndex.store(indexFile);
+
+            for(TarIndex index : Arrays.asList(tarIndex, TarIndex.map(indexFile, true)))
+            {
+                assertEquals(expected.getSize(), index.getSize());
+
+                for(int i = 0; i < expected.getSize(); i++)
+                {
+                    assertEquals(i == last ? -1 : expected.getHeader(i).getChecksum(), index.getHeader(i).getChecksum());
+                }
+            }
+        }
+        finally
+        {
+            copy.delete();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void indexesStreamReadInSmallPieces() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        InputStream in = new FileInputStream(tarFile);
+
+        try
+        {
+            final ReadableByteChannel channel = Channels.newChannel(in);
+
+            ReadableByteChannel trickle = new ReadableByteChannel()
+            {
+                @Override
+                public int read(ByteBuffer dst) throws IOException
+                {
+                    ByteBuffer piece = dst.duplicate();
+                    piece.limit(piece.position() + Math.min(piece.remaining(), 77));
+
+                    int count = channel.read(piece);
+
+                    if(count > 0) dst.position(dst.position() + count);
+
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen()
+                {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    channel.close();
+                }
+            };
+
+            TarIndex tarIndex = new StreamingTarIndexer(TarIndex.Option.HASH_LOOKUP).index(trickle, tarFile, false);
+
+            assertIndexedLike(new TarIndex(tarFile), tarIndex);
+            assertEquals(69202, tarIndex.get("images/top.jpg").get().getSize());
+            assertEquals(565760, tarIndex.get("images/top.jpg").get().getTarFileOffset());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void assertIndexedLike(TarIndex expected, TarIndex tarIndex)
+    {
+        assertEquals(expected.getSize(), tarIndex.getSize());
+        assertEquals(expected.getLastModified(), tarIndex.getLastModified());
+        assertEquals(expected.getEndOffset(), tarIndex.getEndOffset());
+        assertEquals(expected.getArchiveLength(), tarIndex.getArchiveLength());
+
+        for(int i = 0; i < expected.getSize(); i++)
+        {
+            assertEquals(expected.getHeader(i).getName(), tarIndex.getHeader(i).getName());
+            assertEquals(expected.getHeader(i).getTarFileOffset(), tarIndex.getHeader(i).getTarFileOffset());
+            assertEquals(expected.getHeader(i).getSize(), tarIndex.getHeader(i).getSize());
+        }
+    }
+}
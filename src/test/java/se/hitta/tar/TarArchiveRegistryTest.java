@@ -0,0 +1,198 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarArchiveRegistryTest
+{
+    private File directory;
+    private File[] tarFiles;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("registry", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        this.tarFiles = new File[3];
+
+        for(int i = 0; i < this.tarFiles.length; i++)
+        {
+            this.tarFiles[i] = new File(this.directory, "test" + i + ".tar");
+            FileUtils.copyFile(tarFile, this.tarFiles[i]);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedArchives() throws IOException
+    {
+        String expected = IOUtils.toString(getClass().getClassLoader().getResource("glUtils.js"));
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 2);
+
+        try
+        {
+            InputStream stream = registry.newInputStream(this.tarFiles[0], "scripts/glUtils.js").get();
+
+            registry.newInputStream(this.tarFiles[1], "scripts/glUtils.js").get().close();
+            registry.newInputStream(this.tarFiles[2], "scripts/glUtils.js").get().close();
+
+            assertEquals(2, registry.size());
+            assertFalse(registry.newInputStream(this.tarFiles[2], "scripts/missing.js").isPresent());
+
+            //the archive of the stream has been evicted, but the stream is still readable
+            assertEquals(expected, IOUtils.toString(stream));
+            stream.close();
+
+            for(File tarFile : this.tarFiles)
+            {
+                assertTrue(registry.getIndexFile(tarFile).exists());
+            }
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void limitsMemoryUsage() throws IOException
+    {
+        long memoryUsage = new TarIndex(this.tarFiles[0]).getMemoryUsage();
+        TarArchiveRegistry registry = new TarArchiveRegistry(null, memoryUsage * 2, 10);
+
+        try
+        {
+            for(File tarFile : this.tarFiles)
+            {
+                TarArchive archive = registry.acquire(tarFile);
+                archive.release();
+            }
+
+            assertEquals(2, registry.size());
+            assertEquals(memoryUsage * 2, registry.getMemoryUsage());
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void keepsIndexesOfArchivesWithTheSameNameApart() throws IOException
+    {
+        File other = new File(new File(this.directory, "other"), this.tarFiles[0].getName());
+        other.getParentFile().mkdirs();
+
+        TarArchiveWriter writer = new TarArchiveWriter(other);
+        writer.add("other.txt", "other".getBytes("UTF-8"));
+        writer.finish();
+
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 1);
+
+        try
+        {
+            assertTrue(registry.newInputStream(this.tarFiles[0], "scripts/glUtils.js").isPresent());
+            assertEquals("other", IOUtils.toString(registry.newInputStream(other, "other.txt").get()));
+            assertTrue(registry.newInputStream(this.tarFiles[0], "scripts/glUtils.js").isPresent());
+            assertFalse(registry.newInputStream(other, "scripts/glUtils.js").isPresent());
+            assertFalse(registry.getIndexFile(this.tarFiles[0]).equals(registry.getIndexFile(other)));
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void opensArchiveOnceWhateverPathLeadsToIt() throws IOException
+    {
+        File link = new File(this.directory, "link.tar");
+        Files.createSymbolicLink(link.toPath(), this.tarFiles[0].toPath());
+
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchive archive = registry.acquire(this.tarFiles[0]);
+
+            try
+            {
+                for(File alias : new File[] { link, new File(new File(this.directory, "."), this.tarFiles[0].getName()) })
+                {
+                    TarArchive other = registry.acquire(alias);
+                    other.release();
+
+                    assertSame(archive, other);
+                }
+            }
+            finally
+            {
+                archive.release();
+            }
+
+            assertEquals(1, registry.size());
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void rebuildsIndexesStoredWithOtherOptions() throws IOException
+    {
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 1);
+
+        try
+        {
+            registry.acquire(this.tarFiles[0]).release();
+        }
+        finally
+        {
+            registry.close();
+        }
+
+        registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 1, TarIndex.Option.MOD_TIMES);
+
+        try
+        {
+            TarArchive archive = registry.acquire(this.tarFiles[0]);
+
+            try
+            {
+                assertEquals(1341987512L, archive.get("scripts/glUtils.js").get().getModTime());
+            }
+            finally
+            {
+                archive.release();
+            }
+
+            assertEquals(1341987512L, TarIndex.map(registry.getIndexFile(this.tarFiles[0])).get("scripts/glUtils.js").get().getModTime());
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarArchiveSetTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private File[] tarFiles;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("set", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.tarFiles = new File[3];
+
+        for(int i = 0; i < this.tarFiles.length; i++)
+        {
+            this.tarFiles[i] = new File(this.directory, "2013-03-1" + i + "#3207_19207.tar");
+            TarArchiveWriter writer = new TarArchiveWriter(this.tarFiles[i]);
+
+            try
+            {
+                for(int j = 0; j < 1000; j++)
+                {
+                    writer.add("tiles/" + i + "/" + j + ".png", (i + "/" + j).getBytes(UTF8));
+                }
+
+                writer.add("shared.txt", ("shared " + i).getBytes(UTF8));
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.directory);
+    }
+
+    @Test
+    public void canLocateFilesAcrossArchives() throws IOException
+    {
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchiveSet set = new TarArchiveSet(registry);
+
+            for(File tarFile : this.tarFiles)
+            {
+                set.add(tarFile);
+                assertTrue(new File(registry.getIndexFile(tarFile).getPath() + TarBloomFilter.FILTER_SUFFIX).exists());
+            }
+
+            assertEquals(3, set.size());
+            assertEquals(this.tarFiles[1].getCanonicalFile(), set.locate("tiles/1/500.png").get());
+            assertEquals(this.tarFiles[2].getCanonicalFile(), set.locate("tiles/2/999.png").get());
+            assertEquals("2/17", IOUtils.toString(set.newInputStream("tiles/2/17.png").get(), "UTF-8"));
+            assertFalse(set.locate("tiles/3/0.png").isPresent());
+            assertFalse(set.newInputStream("tiles/3/0.png").isPresent());
+
+            //the first archive added wins
+            assertEquals("shared 0", IOUtils.toString(set.newInputStream("shared.txt").get(), "UTF-8"));
+
+            assertTrue(set.remove(this.tarFiles[0]));
+            assertFalse(set.remove(this.tarFiles[0]));
+            assertEquals("shared 1", IOUtils.toString(set.newInputStream("shared.txt").get(), "UTF-8"));
+            assertFalse(set.locate("tiles/0/1.png").isPresent());
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void reusesStoredFilters() throws IOException
+    {
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchiveSet set = new TarArchiveSet(registry);
+
+            for(File tarFile : this.tarFiles)
+            {
+                set.add(tarFile);
+            }
+        }
+        finally
+        {
+            registry.close();
+        }
+
+        registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchiveSet set = new TarArchiveSet(registry);
+
+            for(File tarFile : this.tarFiles)
+            {
+                set.add(tarFile);
+            }
+
+            //no index had to be loaded to add the archives, and only the archive holding the file is opened
+            assertEquals(0, registry.size());
+            assertEquals(this.tarFiles[2].getCanonicalFile(), set.locate("tiles/2/42.png").get());
+            assertTrue(registry.size() <= 2);
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void rebuildsStoredFiltersWithOtherBitsPerEntry() throws IOException
+    {
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchiveSet set = new TarArchiveSet(registry, 10);
+            set.add(this.tarFiles[0]);
+
+            TarArchiveSet wider = new TarArchiveSet(registry, 20);
+            wider.add(this.tarFiles[0]);
+
+            assertTrue(wider.getMemoryUsage() > set.getMemoryUsage());
+            assertEquals(20, TarBloomFilter.load(new File(registry.getIndexFile(this.tarFiles[0]).getPath() + TarBloomFilter.FILTER_SUFFIX)).getBitsPerEntry());
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void findsFilesAppendedToArchivesInTheSet() throws IOException
+    {
+        TarArchiveRegistry registry = new TarArchiveRegistry(this.directory, Long.MAX_VALUE, 10);
+
+        try
+        {
+            TarArchiveSet set = new TarArchiveSet(registry);
+
+            for(File tarFile : this.tarFiles)
+            {
+                set.add(tarFile);
+            }
+
+            //opens the archive, with its index as it is before appending
+            assertTrue(set.locate("tiles/0/1.png").isPresent());
+            assertFalse(set.locate("tiles/0/appended.png").isPresent());
+
+            File appended = new File(this.directory, "appended.tar");
+            TarArchiveWriter writer = new TarArchiveWriter(appended);
+
+            try
+            {
+                writer.add("tiles/0/appended.png", "appended".getBytes(UTF8));
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            //the header and data block of the file, followed by a new end of the archive
+            RandomAccessFile file = new RandomAccessFile(this.tarFiles[0], "rw");
+
+            try
+            {
+                file.seek(new TarIndex(this.tarFiles[0]).getEndOffset());
+                file.write(FileUtils.readFileToByteArray(appended), 0, 1024);
+                file.write(new byte[1024]);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            this.tarFiles[0].setLastModified(this.tarFiles[0].lastModified() + 2000);
+
+            assertEquals(this.tarFiles[0].getCanonicalFile(), set.locate("tiles/0/appended.png").get());
+            assertEquals("appended", IOUtils.toString(set.newInputStream("tiles/0/appended.png").get(), "UTF-8"));
+        }
+        finally
+        {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void filterRulesOutMostMissingNames() throws IOException
+    {
+        TarIndex index = new TarIndex(this.tarFiles[0]);
+        TarBloomFilter filter = TarBloomFilter.build(index);
+
+        for(int j = 0; j < 1000; j++)
+        {
+            assertTrue(filter.mightContain("tiles/0/" + j + ".png"));
+        }
+
+        int falsePositives = 0;
+
+        for(int j = 0; j < 10000; j++)
+        {
+            if(filter.mightContain("tiles/1/" + j + ".png")) falsePositives++;
+        }
+
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+
+        File file = new File(this.directory, "filter" + TarBloomFilter.FILTER_SUFFIX);
+        filter.store(file);
+        TarBloomFilter loaded = TarBloomFilter.load(file);
+
+        assertTrue(loaded.isCurrent(this.tarFiles[0]));
+        assertEquals(filter.getHashCount(), loaded.getHashCount());
+        assertEquals(TarBloomFilter.DEFAULT_BITS_PER_ENTRY, loaded.getBitsPerEntry());
+
+        for(int j = 0; j < 10000; j++)
+        {
+            assertEquals(filter.mightContain("tiles/1/" + j + ".png"), loaded.mightContain("tiles/1/" + j + ".png"));
+        }
+    }
+}
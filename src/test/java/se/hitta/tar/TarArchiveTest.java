@@ -0,0 +1,268 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarArchiveTest
+{
+    private TarArchive archive;
+    private String expected;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.expected = IOUtils.toString(getClass().getClassLoader().getResource("glUtils.js"));
+        this.archive = new TarArchive(new File(getClass().getClassLoader().getResource("test.tar").getPath()));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        this.archive.close();
+    }
+
+    @Test
+    public void canReadConcurrentlyFromSharedArchive() throws Exception
+    {
+        final TarHeader header = this.archive.get("scripts/glUtils.js").get();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try
+        {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+
+            for(int i = 0; i < 64; i++)
+            {
+                results.add(executor.submit(new Callable<String>()
+                {
+                    @Override
+                    public String call() throws IOException
+                    {
+                        InputStream stream = archive.newInputStream(header);
+
+                        try
+                        {
+                            return IOUtils.toString(stream);
+                        }
+                        finally
+                        {
+                            stream.close();
+                        }
+                    }
+                }));
+            }
+
+            for(Future<String> result : results)
+            {
+                assertEquals(this.expected, result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void canReadFromEntryChannel() throws IOException
+    {
+        TarEntryChannel channel = this.archive.newChannel(this.archive.get("scripts/glUtils.js").get());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+
+        try
+        {
+            while(channel.read(buffer) >= 0)
+            {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        assertEquals(this.expected, out.toString("UTF-8"));
+    }
+
+    @Test
+    public void canSeekInEntryChannel() throws IOException
+    {
+        TarEntryChannel channel = this.archive.newChannel(this.archive.get("scripts/glUtils.js").get());
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+
+        try
+        {
+            assertEquals(4889, channel.size());
+
+            channel.position(4800);
+            assertEquals(89, channel.read(buffer));
+            assertEquals(4889, channel.position());
+            assertEquals(this.expected.substring(4800), new String(buffer.array(), 0, buffer.position(), "UTF-8"));
+
+            buffer.clear();
+            channel.position(10);
+            assertEquals(100, channel.read(buffer));
+            assertEquals(this.expected.substring(10, 110), new String(buffer.array(), "UTF-8"));
+
+            //positions past the end are kept, as SeekableByteChannel requires
+            channel.position(5000);
+            assertEquals(5000, channel.position());
+            assertEquals(-1, channel.read(buffer));
+            assertEquals(5000, channel.position());
+
+            channel.position(Long.MAX_VALUE);
+            assertEquals(Long.MAX_VALUE, channel.position());
+            assertEquals(-1, channel.read(buffer));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void canReadRangeOfEntry() throws IOException
+    {
+        TarHeader header = this.archive.get("scripts/glUtils.js").get();
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+
+        assertEquals(100, this.archive.read(header, 10, buffer));
+        assertEquals(this.expected.substring(10, 110), new String(buffer.array(), "UTF-8"));
+
+        buffer.clear();
+
+        assertEquals(9, this.archive.read(header, header.getSize() - 9, buffer));
+        assertEquals(100, buffer.limit());
+        assertEquals(-1, this.archive.read(header, header.getSize(), buffer));
+    }
+
+    @Test
+    public void canTransferEntryToChannel() throws IOException
+    {
+        TarHeader header = this.archive.get("scripts/glUtils.js").get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(header.getSize(), this.archive.transferTo(header, Channels.newChannel(out)));
+        assertEquals(this.expected, out.toString("UTF-8"));
+
+        out.reset();
+
+        assertEquals(100, this.archive.transferTo(header, 10, 100, Channels.newChannel(out)));
+        assertEquals(this.expected.substring(10, 110), out.toString("UTF-8"));
+
+        out.reset();
+
+        assertEquals(9, this.archive.transferTo(header, header.getSize() - 9, 100, Channels.newChannel(out)));
+    }
+
+    @Test
+    public void keepsStreamsReadableWhenClosed() throws IOException
+    {
+        InputStream stream = this.archive.newInputStream(this.archive.get("scripts/glUtils.js").get());
+
+        this.archive.close();
+
+        try
+        {
+            assertEquals(this.expected, IOUtils.toString(stream));
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        assertFalse(this.archive.retain());
+    }
+
+    @Test
+    public void refusesNewStreamsWhenClosed() throws IOException
+    {
+        TarHeader header = this.archive.get("scripts/glUtils.js").get();
+        InputStream stream = this.archive.newInputStream(header);
+
+        this.archive.close();
+
+        //another reference is still held, but a closed archive hands out no new ones
+        assertFalse(this.archive.retain());
+
+        try
+        {
+            this.archive.newInputStream(header);
+            fail("opened a stream from a closed archive");
+        } catch (IOException e)
+        {
+            //expected
+        }
+
+        try
+        {
+            this.archive.newChannel(header);
+            fail("opened a channel from a closed archive");
+        } catch (IOException e)
+        {
+            //expected
+        }
+
+        try
+        {
+            assertEquals(this.expected, IOUtils.toString(stream));
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void canReadBatchOfEntries() throws IOException
+    {
+        List<String> keys = Arrays.asList("scripts/glUtils.js", "images/top.jpg", "missing", "index.html", "images/back.jpg", "scripts/glUtils.js");
+
+        for(int maxGap : new int[] { 0, TarArchive.DEFAULT_MAX_GAP, Integer.MAX_VALUE })
+        {
+            Map<String, ByteBuffer> entries = this.archive.read(keys, maxGap);
+
+            assertEquals(Arrays.asList("scripts/glUtils.js", "images/top.jpg", "index.html", "images/back.jpg"), new ArrayList<String>(entries.keySet()));
+            assertEquals(this.expected, Charset.forName("UTF-8").decode(entries.get("scripts/glUtils.js").duplicate()).toString());
+
+            for(Map.Entry<String, ByteBuffer> entry : entries.entrySet())
+            {
+                InputStream stream = this.archive.newInputStream(this.archive.get(entry.getKey()).get());
+
+                try
+                {
+                    assertEquals(entry.getKey(), ByteBuffer.wrap(IOUtils.toByteArray(stream)), entry.getValue());
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+        }
+    }
+}
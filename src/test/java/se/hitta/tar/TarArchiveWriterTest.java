@@ -0,0 +1,227 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarArchiveWriterTest
+{
+    private File tarFile;
+    private File glUtils;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.tarFile = File.createTempFile("test", ".tar");
+        this.glUtils = new File(getClass().getClassLoader().getResource("glUtils.js").getPath());
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.tarFile.delete();
+    }
+
+    @Test
+    public void writesArchiveAndIndex() throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(this.tarFile, TarIndex.Option.HASH_LOOKUP);
+
+        writer.add("b.txt", "hello".getBytes("UTF-8"));
+        writer.add("a/glUtils.js", this.glUtils);
+        writer.add("c.bin", new ByteArrayInputStream(new byte[1024]), 1024);
+        writer.add("empty", new byte[0]);
+
+        TarIndex tarIndex = writer.finish();
+
+        assertIndexedLike(new TarIndex(this.tarFile), tarIndex);
+        assertEquals(512, tarIndex.get("b.txt").get().getTarFileOffset());
+        assertEquals(this.glUtils.length(), tarIndex.get("a/glUtils.js").get().getSize());
+
+        TarArchive archive = new TarArchive(tarIndex);
+
+        try
+        {
+            assertEquals("hello", read(archive, "b.txt"));
+            assertEquals(FileUtils.readFileToString(this.glUtils), read(archive, "a/glUtils.js"));
+            assertEquals("", read(archive, "empty"));
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void writesHotEntriesFirst() throws IOException
+    {
+        Map<String, Integer> accessCounts = new HashMap<String, Integer>();
+        accessCounts.put("hot", 100);
+        accessCounts.put("warm", 10);
+
+        File indexFile = File.createTempFile("test", ".idx");
+        TarArchiveWriter writer = new TarArchiveWriter(this.tarFile, TarArchiveWriter.byAccessCount(accessCounts));
+
+        try
+        {
+            writer.add("a", this.glUtils);
+            writer.add("warm", "warm".getBytes("UTF-8"));
+            writer.add("b", new byte[600]);
+            writer.add("hot", "hot".getBytes("UTF-8"));
+
+            TarIndex tarIndex = writer.finish(indexFile);
+
+            assertEquals(512, tarIndex.get("hot").get().getTarFileOffset());
+            assertEquals(512 * 3, tarIndex.get("warm").get().getTarFileOffset());
+            assertEquals(512 * 5, tarIndex.get("a").get().getTarFileOffset());
+            assertIndexedLike(new TarIndex(this.tarFile), tarIndex);
+            assertIndexedLike(tarIndex, TarIndex.map(indexFile));
+
+            File[] staging = this.tarFile.getAbsoluteFile().getParentFile().listFiles();
+
+            for(File file : staging)
+            {
+                assertFalse(file.getName().startsWith(this.tarFile.getName()) && file.getName().endsWith(".staging"));
+            }
+        }
+        finally
+        {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void writesModTimesAndChecksums() throws IOException
+    {
+        byte[] content = new byte[1024];
+        Arrays.fill(content, (byte)'x');
+
+        TarArchiveWriter writer = new TarArchiveWriter(this.tarFile, TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS);
+
+        writer.add("a/glUtils.js", this.glUtils);
+        writer.add("b.txt", "hello".getBytes("UTF-8"));
+        writer.add("c.bin", new ByteArrayInputStream(content), content.length);
+        writer.add("empty", new byte[0]);
+        writer.add("old.txt", new ByteArrayInputStream(content), content.length, -1, TarArchiveWriter.DEFAULT_MODE);
+
+        TarIndex tarIndex = writer.finish();
+
+        assertEquals(this.glUtils.lastModified() / 1000, tarIndex.get("a/glUtils.js").get().getModTime());
+        assertEquals(-1, tarIndex.get("old.txt").get().getModTime());
+        assertEquals(TarHeader.UNKNOWN_MOD_TIME, new TarIndex(this.tarFile).get("old.txt").get().getModTime());
+        assertEquals(checksum(FileUtils.readFileToByteArray(this.glUtils)), tarIndex.get("a/glUtils.js").get().getChecksum());
+        assertEquals(checksum("hello".getBytes("UTF-8")), tarIndex.get("b.txt").get().getChecksum());
+        assertEquals(checksum(content), tarIndex.get("c.bin").get().getChecksum());
+        assertEquals(0, tarIndex.get("empty").get().getChecksum());
+
+        //indexing the written archive gives the same columns
+        TarIndex indexed = new TarIndex(this.tarFile, TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS);
+
+        for(int i = 0; i < tarIndex.getSize(); i++)
+        {
+            assertEquals(indexed.getHeader(i).getModTime(), tarIndex.getHeader(i).getModTime());
+            assertEquals(indexed.getHeader(i).getChecksum(), tarIndex.getHeader(i).getChecksum());
+        }
+    }
+
+    @Test
+    public void discardsPartiallyWrittenEntry() throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(this.tarFile);
+
+        try
+        {
+            writer.add("a", "a".getBytes("UTF-8"));
+
+            try
+            {
+                writer.add("truncated", new ByteArrayInputStream(new byte[100]), 1000);
+                fail();
+            } catch (EOFException e)
+            {
+                //expected
+            }
+
+            writer.add("b", "b".getBytes("UTF-8"));
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        TarIndex tarIndex = new TarIndex(this.tarFile);
+
+        assertEquals(2, tarIndex.getSize());
+        assertTrue(tarIndex.get("b").isPresent());
+        assertFalse(tarIndex.get("truncated").isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooLongNames() throws IOException
+    {
+        TarArchiveWriter writer = new TarArchiveWriter(this.tarFile);
+
+        try
+        {
+            writer.add(new String(new char[101]).replace('\0', 'x'), new byte[1]);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static String read(TarArchive archive, String name) throws IOException
+    {
+        InputStream stream = archive.newInputStream(archive.get(name).get());
+
+        try
+        {
+            return IOUtils.toString(stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private static void assertIndexedLike(TarIndex expected, TarIndex tarIndex)
+    {
+        assertEquals(expected.getSize(), tarIndex.getSize());
+        assertEquals(expected.getLastModified(), tarIndex.getLastModified());
+        assertEquals(expected.getEndOffset(), tarIndex.getEndOffset());
+        assertEquals(expected.getArchiveLength(), tarIndex.getArchiveLength());
+
+        for(int i = 0; i < expected.getSize(); i++)
+        {
+            assertEquals(expected.getHeader(i).getName(), tarIndex.getHeader(i).getName());
+            assertEquals(expected.getHeader(i).getTarFileOffset(), tarIndex.getHeader(i).getTarFileOffset());
+            assertEquals(expected.getHeader(i).getSize(), tarIndex.getHeader(i).getSize());
+        }
+    }
+
+    private static long checksum(byte[] content)
+    {
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+
+        return checksum.getValue();
+    }
+}
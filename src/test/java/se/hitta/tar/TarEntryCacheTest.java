@@ -0,0 +1,146 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarEntryCacheTest
+{
+    private TarArchive archive;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.archive = new TarArchive(new File(getClass().getClassLoader().getResource("test.tar").getPath()));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        this.archive.close();
+    }
+
+    @Test
+    public void canCacheEntries() throws IOException
+    {
+        String expected = IOUtils.toString(getClass().getClassLoader().getResource("glUtils.js"));
+
+        for(boolean offHeap : new boolean[] { false, true })
+        {
+            TarEntryCache cache = new TarEntryCache(1 << 20, offHeap);
+
+            for(int i = 0; i < 3; i++)
+            {
+                ByteBuffer content = cache.get(this.archive, "scripts/glUtils.js").get();
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+
+                assertEquals(expected, new String(bytes, "UTF-8"));
+                assertEquals(expected, IOUtils.toString(cache.newInputStream(this.archive, this.archive.get("scripts/glUtils.js").get())));
+            }
+
+            assertEquals(1, cache.getMissCount());
+            assertEquals(5, cache.getHitCount());
+            assertEquals(1, cache.getCount());
+            assertEquals(4889, cache.getSize());
+        }
+    }
+
+    @Test
+    public void keepsFrequentlyUsedEntriesDuringScans() throws IOException
+    {
+        //room for the two large images, but not for everything
+        TarEntryCache cache = new TarEntryCache(300000, false);
+
+        for(int i = 0; i < 10; i++)
+        {
+            cache.get(this.archive, "images/back.jpg");
+            cache.get(this.archive, "images/right.jpg");
+        }
+
+        long misses = cache.getMissCount();
+
+        for(int i = 0; i < this.archive.getIndex().getSize(); i++)
+        {
+            cache.get(this.archive, this.archive.getIndex().getHeader(i));
+        }
+
+        cache.get(this.archive, "images/back.jpg");
+        cache.get(this.archive, "images/right.jpg");
+
+        assertEquals(misses + this.archive.getIndex().getSize() - 2, cache.getMissCount());
+        assertTrue(cache.getRejectionCount() > 0);
+        assertTrue(cache.getSize() <= 300000);
+    }
+
+    @Test
+    public void doesNotServeReplacedEntriesOfRefreshedArchive() throws IOException
+    {
+        File tarFile = File.createTempFile("test", ".tar");
+
+        try
+        {
+            FileUtils.copyURLToFile(getClass().getClassLoader().getResource("test.tar"), tarFile);
+
+            TarEntryCache cache = new TarEntryCache(1 << 20, false);
+            TarArchive archive = new TarArchive(tarFile);
+            TarIndex refreshed;
+
+            try
+            {
+                assertEquals('<', cache.get(archive, "index.html").get().get(0));
+
+                //append the first file in the archive (index.html, header + 16 data blocks) with other content
+                byte[] appended = Arrays.copyOfRange(FileUtils.readFileToByteArray(tarFile), 0, 17 * 512);
+                appended[512] = 'x';
+
+                RandomAccessFile file = new RandomAccessFile(tarFile, "rw");
+
+                try
+                {
+                    file.seek(archive.getIndex().getEndOffset());
+                    file.write(appended);
+                    file.write(new byte[1024]);
+                }
+                finally
+                {
+                    file.close();
+                }
+
+                tarFile.setLastModified(tarFile.lastModified() + 2000);
+                refreshed = archive.getIndex().refresh();
+            }
+            finally
+            {
+                archive.close();
+            }
+
+            archive = new TarArchive(refreshed);
+
+            try
+            {
+                assertEquals('x', cache.get(archive, "index.html").get().get(0));
+                assertEquals(2, cache.getMissCount());
+            }
+            finally
+            {
+                archive.close();
+            }
+        }
+        finally
+        {
+            tarFile.delete();
+        }
+    }
+}
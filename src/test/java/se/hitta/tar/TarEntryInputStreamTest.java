@@ -34,4 +34,27 @@ public class TarEntryInputStreamTest
             stream.close();            
         }
     }
+
+    @Test
+    public void canSkipBeyondIntegerRange() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        
+        TarHeader header = TarHeader.buildView("huge".getBytes("UTF-8"), 5L << 30, TarHeader.LF_NORMAL, 512);
+        
+        InputStream stream = new TarEntryInputStream(header, tarFile);
+        
+        try
+        {
+            assertEquals(4L << 30, stream.skip(4L << 30));
+            assertEquals(1 << 30, stream.available());
+            assertEquals(1L << 30, stream.skip(Long.MAX_VALUE));
+            assertEquals(0, stream.available());
+            assertEquals(-1, stream.read());
+        }
+        finally
+        {
+            stream.close();            
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TarHeaderIteratorTest
+{
+    @Test
+    public void canIterateOverHeaders() throws IOException
+    {
+        File tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+
+        TarHeaderIterator iterator = new TarHeaderIterator(tarFile);
+
+        try
+        {
+            assertTrue(iterator.hasNext());
+            assertTrue(iterator.hasNext());
+
+            TarHeader first = iterator.next();
+            assertEquals("index.html", first.getName());
+            assertEquals(7717, first.getSize());
+            assertEquals(512, first.getTarFileOffset());
+
+            int count = 1;
+
+            while(iterator.hasNext())
+            {
+                iterator.next();
+                count++;
+            }
+
+            assertEquals(15, count);
+            assertFalse(iterator.hasNext());
+        }
+        finally
+        {
+            iterator.close();
+        }
+    }
+
+    @Test
+    public void canParseOctalAndBase256Numbers()
+    {
+        assertEquals(69202, TarHeader.parseOctal("00000207122\0".getBytes(), 0, 12));
+        assertEquals(69202, TarHeader.parseOctal("     207122 ".getBytes(), 0, 12));
+        assertEquals(0, TarHeader.parseOctal(new byte[12], 0, 12));
+
+        byte[] base256 = new byte[12];
+        base256[0] = (byte)0x80;
+        base256[7] = 0x02;
+        assertEquals(0x0200000000L, TarHeader.parseOctal(base256, 0, 12));
+
+        //negative numbers are two's complement, e.g. a modification time one second before 1970
+        byte[] negative = new byte[12];
+        Arrays.fill(negative, (byte)0xff);
+        assertEquals(-1, TarHeader.parseOctal(negative, 0, 12));
+
+        negative[11] = 0x00;
+        assertEquals(-256, TarHeader.parseOctal(negative, 0, 12));
+    }
+
+    @Test
+    public void canFormatNegativeModTimes()
+    {
+        byte[] block = new byte[TarHeader.HEADER_BLOCK];
+        TarHeader.format(block, 0, "old.txt".getBytes(), 1, TarHeader.LF_NORMAL, -86400L, 0644);
+
+        assertEquals(-86400L, TarHeader.build(block, 0, TarHeader.HEADER_BLOCK).getModTime());
+        assertTrue(TarHeader.isUstarHeader(block, 0));
+    }
+}
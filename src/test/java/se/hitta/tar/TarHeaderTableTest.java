@@ -0,0 +1,120 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class TarHeaderTableTest
+{
+    private static final String[] NAMES = { "", "a", "ab", "b", "z15/x1234/y1.jpg", "\u00e5\u00e4\u00f6", "\u20ac", "\ud83d\ude00", "\uffff", "\ud83d", "a\u0000" };
+
+    @Test
+    public void comparesCharSequencesAndBytesInUtf8Order() throws UnsupportedEncodingException
+    {
+        TarHeader[] headers = new TarHeader[NAMES.length];
+
+        for(int i = 0; i < NAMES.length; i++)
+        {
+            headers[i] = TarHeader.buildView(NAMES[i].getBytes("UTF-8"), i, TarHeader.LF_NORMAL, i);
+        }
+
+        Arrays.sort(headers);
+
+        TarHeaderTable table = TarHeaderTable.build(headers, EnumSet.noneOf(TarIndex.Option.class));
+
+        for(int i = 0; i < headers.length; i++)
+        {
+            for(String key : NAMES)
+            {
+                int expected = Integer.signum(headers[i].compareTo(TarHeader.buildView(key.getBytes("UTF-8"), 0, TarHeader.LF_NORMAL, 0)));
+
+                assertEquals(key, expected, Integer.signum(table.compare(i, key)));
+                assertEquals(key, expected, Integer.signum(table.compare(i, ByteBuffer.wrap(key.getBytes("UTF-8")))));
+            }
+
+            assertEquals(i, table.indexOf(headers[i].getName()));
+        }
+    }
+
+    @Test
+    public void canFindNamesUsingHashLookup() throws UnsupportedEncodingException
+    {
+        TarHeader[] headers = new TarHeader[NAMES.length];
+
+        for(int i = 0; i < NAMES.length; i++)
+        {
+            headers[i] = TarHeader.buildView(NAMES[i].getBytes("UTF-8"), i, TarHeader.LF_NORMAL, i);
+        }
+
+        Arrays.sort(headers);
+
+        TarHeaderTable table = TarHeaderTable.build(headers, EnumSet.of(TarIndex.Option.HASH_LOOKUP));
+
+        for(int i = 0; i < headers.length; i++)
+        {
+            assertEquals(i, table.find(headers[i].getName()));
+            assertEquals(i, table.find(ByteBuffer.wrap(headers[i].getNameBytes())));
+        }
+
+        assertTrue(table.find("missing") < 0);
+        assertTrue(table.find(ByteBuffer.wrap("missing".getBytes("UTF-8"))) < 0);
+    }
+
+    @Test
+    public void findsNewestOfDuplicateNamesWithAndWithoutHashLookup() throws UnsupportedEncodingException
+    {
+        //a file appended to an archive with the name of an earlier file replaces it
+        TarHeader[] headers = {
+                TarHeader.buildView("a".getBytes("UTF-8"), 1, TarHeader.LF_NORMAL, 0),
+                TarHeader.buildView("b".getBytes("UTF-8"), 2, TarHeader.LF_NORMAL, 1024),
+                TarHeader.buildView("b".getBytes("UTF-8"), 3, TarHeader.LF_NORMAL, 3072),
+                TarHeader.buildView("b".getBytes("UTF-8"), 4, TarHeader.LF_NORMAL, 2048),
+                TarHeader.buildView("c".getBytes("UTF-8"), 5, TarHeader.LF_NORMAL, 512) };
+
+        for(TarHeaderTable table : Arrays.asList(TarHeaderTable.build(headers, EnumSet.noneOf(TarIndex.Option.class)), TarHeaderTable.build(headers, EnumSet.of(TarIndex.Option.HASH_LOOKUP))))
+        {
+            assertEquals(3, table.size());
+            assertEquals(1, table.find("b"));
+            assertEquals(1, table.find(ByteBuffer.wrap("b".getBytes("UTF-8"))));
+            assertEquals(1, table.indexOf("b"));
+            assertEquals(3072, table.getTarFileOffset(1));
+            assertEquals(3, table.getHeader(1).getSize());
+        }
+    }
+
+    @Test
+    public void findsPrefixBoundsInUtf8Order() throws UnsupportedEncodingException
+    {
+        TarHeader[] headers = new TarHeader[NAMES.length];
+
+        for(int i = 0; i < NAMES.length; i++)
+        {
+            headers[i] = TarHeader.buildView(NAMES[i].getBytes("UTF-8"), i, TarHeader.LF_NORMAL, i);
+        }
+
+        Arrays.sort(headers);
+
+        TarHeaderTable table = TarHeaderTable.build(headers, EnumSet.noneOf(TarIndex.Option.class));
+
+        for(String prefix : NAMES)
+        {
+            int start = table.lowerBound(prefix);
+            int end = table.prefixEnd(prefix);
+
+            for(int i = 0; i < headers.length; i++)
+            {
+                byte[] name = headers[i].getNameBytes();
+                byte[] bytes = prefix.getBytes("UTF-8");
+                boolean matches = name.length >= bytes.length && Arrays.equals(Arrays.copyOf(name, bytes.length), bytes);
+
+                assertEquals(prefix + " " + headers[i].getName(), matches, i >= start && i < end);
+            }
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package se.hitta.tar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -47,6 +61,39 @@ public class TarIndexTest
         assertEquals(565760, header.getTarFileOffset());
     }
 
+    @Test
+    public void canCreateOffHeapTarIndex() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = new File(fileName.getPath());
+
+        TarIndex tarIndex = new TarIndex(tarFile, TarIndex.Option.OFF_HEAP);
+
+        assertEquals(15, tarIndex.getSize());
+        TarHeader header = tarIndex.get("images/top.jpg").get();
+        assertEquals("images/top.jpg", header.getName());
+        assertEquals(69202, header.getSize());
+        assertEquals(565760, header.getTarFileOffset());
+        assertFalse(tarIndex.get("images/missing.jpg").isPresent());
+    }
+
+    @Test
+    public void canLookupByBytesAndCharSequence() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = new File(fileName.getPath());
+
+        TarIndex tarIndex = new TarIndex(tarFile);
+
+        assertEquals(565760, tarIndex.get("images/top.jpg".getBytes("UTF-8")).get().getTarFileOffset());
+        assertEquals(565760, tarIndex.get(ByteBuffer.wrap("xximages/top.jpg".getBytes("UTF-8"), 2, 14)).get().getTarFileOffset());
+        assertEquals(565760, tarIndex.get(new StringBuilder("images/top.jpg")).get().getTarFileOffset());
+        assertEquals("images/top.jpg", tarIndex.getHeader(tarIndex.indexOf("images/top.jpg")).getName());
+        assertTrue(tarIndex.indexOf("images/top.jp") < 0);
+        assertTrue(tarIndex.indexOf("images/top.jpgx") < 0);
+        assertFalse(tarIndex.get("images/top.jp".getBytes("UTF-8")).isPresent());
+    }
+
     @Test
     public void canSerializeTarIndex() throws IOException
     {
@@ -63,6 +110,7 @@ public class TarIndexTest
         
         assertEquals(tarIndexExpected.getSize(), tarIndex.getSize());
         assertTrue(tarIndexExpected.getLastModified().equals(tarIndex.getLastModified()));
+        assertEquals(565760, tarIndex.get("images/top.jpg").get().getTarFileOffset());
     }
     
     @Test
@@ -74,4 +122,285 @@ public class TarIndexTest
         TarIndex tarIndex2 = TarIndex.deserialize(tarFile);
         assertEquals(19778, tarIndex2.getSize());
     }
+
+    @Test
+    public void canStoreAndMapTarIndex() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = new File(fileName.getPath());
+
+        TarIndex tarIndexExpected = new TarIndex(tarFile, TarIndex.Option.HASH_LOOKUP);
+
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            tarIndexExpected.store(indexFile);
+
+            TarIndex tarIndex = TarIndex.map(indexFile, true);
+
+            assertEquals(tarIndexExpected.getSize(), tarIndex.getSize());
+            assertEquals(tarIndexExpected.getLastModified(), tarIndex.getLastModified());
+            assertEquals(tarFile, tarIndex.getTarFile());
+
+            for(int i = 0; i < tarIndex.getSize(); i++)
+            {
+                TarHeader expected = tarIndexExpected.getHeader(i);
+                TarHeader header = tarIndex.get(expected.getName()).get();
+
+                assertEquals(expected.getName(), header.getName());
+                assertEquals(expected.getSize(), header.getSize());
+                assertEquals(expected.getTarFileOffset(), header.getTarFileOffset());
+                assertEquals(expected.getLinkFlag(), header.getLinkFlag());
+            }
+
+            assertFalse(tarIndex.get("images/missing.jpg").isPresent());
+        }
+        finally
+        {
+            indexFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToMapIndexFileWithCorruptPath() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            new TarIndex(new File(fileName.getPath())).store(indexFile);
+
+            RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+
+            try
+            {
+                file.seek(64);
+                int first = file.read();
+                file.seek(64);
+                file.write(first ^ 1);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            TarIndex.map(indexFile, true);
+        }
+        finally
+        {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void canKeepModTimesAndChecksums() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = new File(fileName.getPath());
+        CRC32 expected = new CRC32();
+        expected.update(IOUtils.toByteArray(getClass().getClassLoader().getResource("glUtils.js")));
+
+        TarIndex tarIndex = new TarIndex(tarFile, TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS);
+        TarHeader header = tarIndex.get("scripts/glUtils.js").get();
+
+        assertEquals(1341987512L, header.getModTime());
+        assertEquals(expected.getValue(), header.getChecksum());
+
+        TarHeader plain = new TarIndex(tarFile).get("scripts/glUtils.js").get();
+
+        assertEquals(TarHeader.UNKNOWN_MOD_TIME, plain.getModTime());
+        assertEquals(-1, plain.getChecksum());
+
+        //every way of indexing computes the same columns, and storing the index keeps them
+        List<TarIndex> indexes = new ArrayList<TarIndex>();
+        indexes.add(new ParallelTarIndexer(new ForkJoinPool(2), 4096).index(tarFile, TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS));
+
+        File copy = File.createTempFile("test", ".tar");
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            indexes.add(new StreamingTarIndexer(TarIndex.Option.MOD_TIMES, TarIndex.Option.CHECKSUMS).index(fileName.openStream(), copy));
+
+            tarIndex.store(indexFile);
+            indexes.add(TarIndex.map(indexFile, true));
+
+            for(TarIndex index : indexes)
+            {
+                assertEquals(tarIndex.getSize(), index.getSize());
+
+                for(int i = 0; i < tarIndex.getSize(); i++)
+                {
+                    assertEquals(tarIndex.getHeader(i).getModTime(), index.getHeader(i).getModTime());
+                    assertEquals(tarIndex.getHeader(i).getChecksum(), index.getHeader(i).getChecksum());
+                }
+            }
+        }
+        finally
+        {
+            copy.delete();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void canMapVersionOneIndexFile() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = new File(fileName.getPath());
+        TarIndex tarIndexExpected = new TarIndex(tarFile);
+
+        File indexFile = File.createTempFile("test", ".idx");
+
+        try
+        {
+            tarIndexExpected.store(indexFile);
+
+            //version 1 index files have zeros where the end offset and length of the archive are kept, and only checksum the columns
+            RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+
+            try
+            {
+                ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+                file.getChannel().read(header, 0);
+                header.putInt(4, 1);
+                header.putLong(40, 0);
+                header.putLong(48, 0);
+
+                byte[] columns = new byte[(int)file.length() - 64 - ((header.getInt(32) + 7) & ~7)];
+                file.seek(file.length() - columns.length);
+                file.readFully(columns);
+
+                CRC32 checksum = new CRC32();
+                checksum.update(columns);
+                header.putInt(36, (int)checksum.getValue());
+
+                checksum = new CRC32();
+                checksum.update(header.array(), 0, 60);
+                header.putInt(60, (int)checksum.getValue());
+                header.clear();
+                file.getChannel().write(header, 0);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            TarIndex tarIndex = TarIndex.map(indexFile, true);
+
+            assertEquals(-1, tarIndex.getEndOffset());
+            assertEquals(-1, tarIndex.getArchiveLength());
+            assertTrue(tarIndex.get("scripts/glUtils.js").isPresent());
+
+            TarIndex refreshed = tarIndex.refresh();
+
+            assertEquals(tarIndexExpected.getSize(), refreshed.getSize());
+            assertEquals(tarIndexExpected.getEndOffset(), refreshed.getEndOffset());
+            assertEquals(tarIndexExpected.getArchiveLength(), refreshed.getArchiveLength());
+        }
+        finally
+        {
+            indexFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToMapCorruptIndexFile() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.ser");
+
+        TarIndex.map(new File(fileName.getPath()));
+    }
+
+    @Test
+    public void canRefreshTarIndexForAppendedArchive() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        File tarFile = File.createTempFile("test", ".tar");
+
+        try
+        {
+            FileUtils.copyURLToFile(fileName, tarFile);
+
+            TarIndex tarIndex = new TarIndex(tarFile, TarIndex.Option.HASH_LOOKUP);
+            assertSame(tarIndex, tarIndex.refresh());
+
+            //append a copy of the first file in the archive (header + 16 data blocks) under a new name, and again under its own name
+            byte[] archive = FileUtils.readFileToByteArray(tarFile);
+            byte[] renamed = Arrays.copyOfRange(archive, 0, 17 * 512);
+            renamed[0] = 'j';
+
+            RandomAccessFile file = new RandomAccessFile(tarFile, "rw");
+
+            try
+            {
+                file.seek(tarIndex.getEndOffset());
+                file.write(renamed);
+                file.write(archive, 0, 17 * 512);
+                file.write(new byte[1024]);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            tarFile.setLastModified(tarFile.lastModified() + 2000);
+
+            TarIndex refreshed = tarIndex.refresh();
+
+            assertEquals(16, refreshed.getSize());
+            assertEquals(tarIndex.getEndOffset() + 512, refreshed.get("jndex.html").get().getTarFileOffset());
+            assertEquals(tarIndex.getEndOffset() + 18 * 512, refreshed.get("index.html").get().getTarFileOffset());
+            assertEquals(tarIndex.getEndOffset() + 34 * 512, refreshed.getEndOffset());
+            assertEquals(565760, refreshed.get("images/top.jpg").get().getTarFileOffset());
+
+            //indexing the appended archive from scratch keeps the same, newest, headers
+            TarIndex expected = new TarIndex(tarFile);
+
+            assertEquals(expected.getSize(), refreshed.getSize());
+
+            for(int i = 0; i < expected.getSize(); i++)
+            {
+                String name = expected.getHeader(i).getName();
+
+                assertEquals(name, refreshed.getHeader(i).getName());
+                assertEquals(expected.get(name).get().getTarFileOffset(), refreshed.get(name).get().getTarFileOffset());
+                assertEquals(expected.get(name).get().getSize(), refreshed.get(name).get().getSize());
+            }
+        }
+        finally
+        {
+            tarFile.delete();
+        }
+    }
+
+    @Test
+    public void canListByPrefixAndRange() throws IOException
+    {
+        URL fileName = getClass().getClassLoader().getResource("test.tar");
+        TarIndex tarIndex = new TarIndex(new File(fileName.getPath()));
+
+        assertEquals(Arrays.asList("images/", "images/back.jpg", "images/bottom.jpg", "images/front.jpg", "images/left.jpg", "images/right.jpg", "images/top.jpg"), names(tarIndex.list("images/")));
+        assertEquals(Arrays.asList("scripts/glUtils.js"), names(tarIndex.list("scripts/gl")));
+        assertEquals(15, names(tarIndex.list("")).size());
+        assertTrue(names(tarIndex.list("x")).isEmpty());
+
+        assertEquals(Arrays.asList("images/front.jpg", "images/left.jpg", "images/right.jpg", "images/top.jpg"), names(tarIndex.range("images/c", "index.html")));
+        assertEquals(Arrays.asList("index.html"), names(tarIndex.range("index.html", "index.html\u0000")));
+        assertTrue(names(tarIndex.range("z", "a")).isEmpty());
+    }
+
+    private static List<String> names(Iterator<TarHeader> headers)
+    {
+        List<String> names = new ArrayList<String>();
+
+        while(headers.hasNext())
+        {
+            names.add(headers.next().getName());
+        }
+
+        return names;
+    }
 }
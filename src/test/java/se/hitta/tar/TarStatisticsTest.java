@@ -0,0 +1,103 @@
+package se.hitta.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TarStatisticsTest
+{
+    private File tarFile;
+    private TarStatistics statistics;
+
+    @Before
+    public void setUp()
+    {
+        this.tarFile = new File(getClass().getClassLoader().getResource("test.tar").getPath());
+        this.statistics = new TarStatistics();
+
+        TarMetrics.setListener(this.statistics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        TarMetrics.setListener(null);
+    }
+
+    @Test
+    public void recordsIndexingLookupsAndReads() throws IOException
+    {
+        TarIndex tarIndex = new TarIndex(this.tarFile);
+
+        assertEquals(1, this.statistics.getIndexBuildTimes().getCount());
+
+        TarHeader header = tarIndex.get("scripts/glUtils.js").get();
+        tarIndex.get("missing");
+        tarIndex.get("index.html".getBytes("UTF-8"));
+
+        assertEquals(2, this.statistics.getHitCount());
+        assertEquals(1, this.statistics.getMissCount());
+        assertEquals(3, this.statistics.getLookupTimes().getCount());
+
+        InputStream stream = new TarEntryInputStream(header, this.tarFile);
+
+        try
+        {
+            assertEquals(1, this.statistics.getOpenEntryCount());
+            IOUtils.toByteArray(stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        assertEquals(0, this.statistics.getOpenEntryCount());
+        assertEquals(4889, this.statistics.getBytesRead());
+        assertEquals(4889, this.statistics.getBytesRead(this.tarFile));
+        assertEquals(1, this.statistics.getEntryReadTimes().getCount());
+    }
+
+    @Test
+    public void reportsLeakedStreams() throws Exception
+    {
+        TarHeader header = new TarIndex(this.tarFile).get("scripts/glUtils.js").get();
+
+        new TarEntryInputStream(header, this.tarFile).read();
+
+        //leaks are reported when a later resource is opened, after the leaked one has been collected
+        for(int i = 0; i < 50 && this.statistics.getLeakCount() == 0; i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+            new TarEntryInputStream(header, this.tarFile).close();
+        }
+
+        assertTrue(this.statistics.getLeakCount() > 0);
+    }
+
+    @Test
+    public void computesPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for(int i = 1; i <= 1000; i++)
+        {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+}